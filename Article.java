@@ -1,21 +1,33 @@
-import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
-
 import java.time.Instant;
 import java.util.List;
 
-@JsonIgnoreProperties(ignoreUnknown = true)
 public class Article {
     private String uuid;
     private String title;
     private String author;
     private String url;
     private String text;
-    private Instant published;
+    private long publishedMillis;
     private String language;
     private List<String> categories;
 
     public Article() { }
 
+    /**
+     * Resets every field so the instance can be reused for the next parsed article.
+     * The categories list is kept and emptied.
+     */
+    public void clear() {
+        uuid = null;
+        title = null;
+        author = null;
+        url = null;
+        text = null;
+        publishedMillis = 0;
+        language = null;
+        if (categories != null) categories.clear();
+    }
+
     public String getUuid() {
         return uuid;
     }
@@ -56,11 +68,19 @@ public class Article {
     }
 
     public Instant getPublished() {
-        return published;
+        return Instant.ofEpochMilli(publishedMillis);
     }
 
     public void setPublished(Instant published) {
-        this.published = published;
+        this.publishedMillis = published.toEpochMilli();
+    }
+
+    public long getPublishedMillis() {
+        return publishedMillis;
+    }
+
+    public void setPublishedMillis(long publishedMillis) {
+        this.publishedMillis = publishedMillis;
     }
 
     public String getLanguage() {
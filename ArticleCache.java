@@ -0,0 +1,209 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Binary cache of parsed article files, one cache file per article file.
+ *
+ * A cache file is named after a hash of the article file's path, its header repeats the path,
+ * size and modification time of the article file and the parser projection, and a cached file
+ * is only used when all of them still match. Articles are stored as length-prefixed UTF-8
+ * strings and read back through a memory-mapped buffer, without any JSON parsing.
+ *
+ * Not thread-safe: every reading thread owns one instance, so misses are written in parallel
+ * by the threads that parsed them.
+ */
+public class ArticleCache {
+    private static final int MAGIC = 0x4E414743;
+    private static final int VERSION = 2;
+
+    private final Path directory;
+    private final String parserKey;
+    private byte[] scratch = new byte[256];
+
+    /**
+     * @param directory where the cache files are kept, created if missing
+     * @param articleParser the parser whose output is cached
+     */
+    public ArticleCache(Path directory, ArticleParser articleParser) {
+        this.directory = directory;
+        this.parserKey = articleParser.cacheKey();
+    }
+
+    /**
+     * Hands every cached article of the file to sink, if the file is cached and unchanged.
+     * The Article instance is reused, sink must copy what it needs.
+     * @param filePath
+     * @param size size of the article file
+     * @param modified modification time of the article file, in millis
+     * @param art
+     * @param sink
+     * @return false on a cache miss, sink was not called then
+     * @throws IOException
+     */
+    public boolean read(String filePath, long size, long modified, Article art, Consumer<Article> sink) throws IOException {
+        MappedByteBuffer buf = load(filePath, size, modified);
+        if (buf == null) return false;
+        decode(buf, art, sink);
+        return true;
+    }
+
+    /**
+     * Maps the cache file of an article file and checks its header.
+     * @param filePath
+     * @param size size of the article file
+     * @param modified modification time of the article file, in millis
+     * @return the buffer positioned at the first article, or null on a cache miss
+     * @throws IOException
+     */
+    public MappedByteBuffer load(String filePath, long size, long modified) throws IOException {
+        MappedByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(cacheFile(filePath), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) return null;
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        if (buf.remaining() < 28 || buf.getInt() != MAGIC || buf.getInt() != VERSION
+                || buf.getLong() != size || buf.getLong() != modified
+                || !filePath.equals(readString(buf)) || !parserKey.equals(readString(buf))) {
+            return null;
+        }
+        Metrics.bytesRead(buf.limit());
+        return buf;
+    }
+
+    /**
+     * Hands the articles of a buffer returned by load to sink.
+     * @param buf
+     * @param art
+     * @param sink
+     */
+    public void decode(ByteBuffer buf, Article art, Consumer<Article> sink) {
+        // the article count is a trailer, it is only known once the file has been parsed
+        int count = buf.getInt(buf.limit() - 4);
+        for (int i = 0; i < count; i++) {
+            art.clear();
+            art.setUuid(readString(buf));
+            art.setTitle(readString(buf));
+            art.setAuthor(readString(buf));
+            art.setUrl(readString(buf));
+            art.setText(readString(buf));
+            art.setLanguage(readString(buf));
+            art.setPublishedMillis(buf.getLong());
+            int numCategories = buf.getInt();
+            if (numCategories > 0) {
+                List<String> cats = art.getCategories();
+                if (cats == null) {
+                    cats = new ArrayList<>(4);
+                    art.setCategories(cats);
+                }
+                for (int c = 0; c < numCategories; c++) cats.add(readString(buf));
+            }
+            sink.accept(art);
+        }
+    }
+
+    /**
+     * Starts writing the cache file of an article file that is being parsed.
+     * @param filePath
+     * @param size size of the article file
+     * @param modified modification time of the article file, in millis
+     * @return
+     * @throws IOException
+     */
+    public Writer writer(String filePath, long size, long modified) throws IOException {
+        Files.createDirectories(directory);
+        Path target = cacheFile(filePath);
+        Path tmp = Files.createTempFile(directory, target.getFileName().toString(), ".tmp");
+        return new Writer(filePath, size, modified, target, tmp);
+    }
+
+    private Path cacheFile(String filePath) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < filePath.length(); i++) h = (h ^ filePath.charAt(i)) * 0x100000001B3L;
+        return directory.resolve(String.format("%016x.bin", h));
+    }
+
+    private String readString(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0) return null;
+        if (length > scratch.length) scratch = new byte[Math.max(length, 2 * scratch.length)];
+        buf.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Cache file being written. The articles go to a temporary file which only replaces the
+     * cache file on commit, so a failed parse never leaves a partial cache behind.
+     */
+    public class Writer {
+        private final Path target;
+        private final Path tmp;
+        private final DataOutputStream out;
+        private int count;
+
+        private Writer(String filePath, long size, long modified, Path target, Path tmp) throws IOException {
+            this.target = target;
+            this.tmp = tmp;
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(size);
+            out.writeLong(modified);
+            ArticleStore.writeString(out, filePath);
+            ArticleStore.writeString(out, parserKey);
+        }
+
+        public void write(Article art) throws IOException {
+            ArticleStore.writeString(out, art.getUuid());
+            ArticleStore.writeString(out, art.getTitle());
+            ArticleStore.writeString(out, art.getAuthor());
+            ArticleStore.writeString(out, art.getUrl());
+            ArticleStore.writeString(out, art.getText());
+            ArticleStore.writeString(out, art.getLanguage());
+            out.writeLong(art.getPublishedMillis());
+            List<String> cats = art.getCategories();
+            int numCategories = cats != null ? cats.size() : 0;
+            out.writeInt(numCategories);
+            for (int c = 0; c < numCategories; c++) ArticleStore.writeString(out, cats.get(c));
+            count++;
+        }
+
+        /**
+         * Writes the article count as a trailer and makes the cache file visible.
+         * @throws IOException
+         */
+        public void commit() throws IOException {
+            out.writeInt(count);
+            out.close();
+            Metrics.bytesWritten(out.size());
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Drops the partially written cache file.
+         */
+        public void abort() {
+            try {
+                out.close();
+                Files.deleteIfExists(tmp);
+            } catch (IOException e) {
+                System.err.println("Cache Error: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Token-streaming deserializer for Article, used instead of databind.
+ * Only the fields in the projection are materialized, everything else is skipped.
+ */
+public class ArticleParser {
+
+    public enum Field {
+        UUID, TITLE, AUTHOR, URL, TEXT, PUBLISHED, LANGUAGE, CATEGORIES
+    }
+
+    private final Set<Field> projection;
+    private final String textLanguage;
+
+    /**
+     * @param projection fields to materialize
+     * @param textLanguage if not null, text is only kept for articles in this language
+     */
+    public ArticleParser(Set<Field> projection, String textLanguage) {
+        this.projection = EnumSet.copyOf(projection);
+        this.textLanguage = textLanguage;
+    }
+
+    /**
+     * Parser that keeps every field, and the text only for english articles.
+     * @return
+     */
+    public static ArticleParser forKeywords() {
+        return new ArticleParser(EnumSet.allOf(Field.class), "english");
+    }
+
+    /**
+     * Parser that keeps every field and every text, the near-duplicate signatures need them all.
+     * @return
+     */
+    public static ArticleParser forNearDuplicates() {
+        return new ArticleParser(EnumSet.allOf(Field.class), null);
+    }
+
+    /**
+     * Identifies what this parser keeps, so cached output of another projection is not reused.
+     * @return
+     */
+    public String cacheKey() {
+        return projection + "/" + textLanguage;
+    }
+
+    /**
+     * Parses the object the parser is positioned on (START_OBJECT) into target, clearing it first.
+     * On return the parser is positioned on the matching END_OBJECT.
+     * @param parser
+     * @param target
+     * @throws IOException
+     */
+    public void parse(JsonParser parser, Article target) throws IOException {
+        boolean textBeforeLanguage = false;
+        target.clear();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            Field field = fieldOf(parser.currentName());
+            JsonToken value = parser.nextToken();
+
+            if (field == null || !projection.contains(field)) {
+                parser.skipChildren();
+                continue;
+            }
+
+            switch (field) {
+                case UUID -> target.setUuid(scalar(parser, value));
+                case TITLE -> target.setTitle(scalar(parser, value));
+                case AUTHOR -> target.setAuthor(scalar(parser, value));
+                case URL -> target.setUrl(scalar(parser, value));
+                case LANGUAGE -> target.setLanguage(scalar(parser, value));
+                case PUBLISHED -> target.setPublishedMillis(publishedMillis(parser, value));
+                case CATEGORIES -> readCategories(parser, value, target);
+                case TEXT -> {
+                    String language = target.getLanguage();
+                    if (textLanguage == null || language == null || textLanguage.equals(language)) {
+                        target.setText(scalar(parser, value));
+                        textBeforeLanguage = language == null;
+                    } else {
+                        // language already known and not wanted, the string is never decoded
+                        parser.skipChildren();
+                    }
+                }
+            }
+        }
+
+        // text came before language, drop it now that the language is known
+        if (textBeforeLanguage && textLanguage != null && !textLanguage.equals(target.getLanguage())) {
+            target.setText(null);
+        }
+    }
+
+    private static Field fieldOf(String name) {
+        return switch (name) {
+            case "uuid" -> Field.UUID;
+            case "title" -> Field.TITLE;
+            case "author" -> Field.AUTHOR;
+            case "url" -> Field.URL;
+            case "text" -> Field.TEXT;
+            case "published" -> Field.PUBLISHED;
+            case "language" -> Field.LANGUAGE;
+            case "categories" -> Field.CATEGORIES;
+            default -> null;
+        };
+    }
+
+    private static String scalar(JsonParser parser, JsonToken value) throws IOException {
+        if (value.isStructStart()) {
+            parser.skipChildren();
+            return null;
+        }
+        return parser.getValueAsString();
+    }
+
+    private static void readCategories(JsonParser parser, JsonToken value, Article target) throws IOException {
+        List<String> list = target.getCategories();
+        if (list == null) {
+            list = new ArrayList<>(4);
+            target.setCategories(list);
+        }
+        list.clear();
+        if (value != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return;
+        }
+        JsonToken t;
+        while ((t = parser.nextToken()) != JsonToken.END_ARRAY) {
+            String cat = scalar(parser, t);
+            if (cat != null) list.add(cat);
+        }
+    }
+
+    /**
+     * Reads a published value as epoch millis. Numbers are epoch seconds, like JavaTimeModule reads them.
+     * @param parser
+     * @param value
+     * @return
+     * @throws IOException
+     */
+    private static long publishedMillis(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_NUMBER_INT) {
+            return parser.getLongValue() * 1000;
+        }
+        if (value == JsonToken.VALUE_NUMBER_FLOAT) {
+            return decimalSecondsMillis(parser.getDecimalValue());
+        }
+        if (value == JsonToken.VALUE_STRING) {
+            String s = parser.getText();
+            try {
+                return parseIsoMillis(s);
+            } catch (DateTimeException | NumberFormatException | ArithmeticException e) {
+                throw new JsonParseException(parser, "Invalid published value: " + s, e);
+            }
+        }
+        if (value.isStructStart()) {
+            parser.skipChildren();
+        }
+        throw new JsonParseException(parser, "Invalid published value");
+    }
+
+    /**
+     * Parses an ISO-8601 instant with optional fraction and offset straight into epoch millis.
+     * Anything the fast path does not recognize goes through DateTimeFormatter.
+     * @param s
+     * @return
+     */
+    static long parseIsoMillis(String s) {
+        int len = s.length();
+        if (len >= 20 && s.charAt(4) == '-' && s.charAt(7) == '-' && s.charAt(10) == 'T'
+                && s.charAt(13) == ':' && s.charAt(16) == ':') {
+            int year = digits(s, 0, 4);
+            int month = digits(s, 5, 2);
+            int day = digits(s, 8, 2);
+            int hour = digits(s, 11, 2);
+            int minute = digits(s, 14, 2);
+            int second = digits(s, 17, 2);
+
+            int pos = 19;
+            int millis = 0;
+            if (pos < len && s.charAt(pos) == '.') {
+                pos++;
+                int scale = 100;
+                while (pos < len && isDigit(s.charAt(pos))) {
+                    millis += (s.charAt(pos) - '0') * scale;
+                    scale /= 10;
+                    pos++;
+                }
+            }
+
+            int offsetSeconds = Integer.MIN_VALUE;
+            if (pos == len - 1 && s.charAt(pos) == 'Z') {
+                offsetSeconds = 0;
+            } else if (pos < len && (s.charAt(pos) == '+' || s.charAt(pos) == '-')) {
+                int sign = s.charAt(pos) == '+' ? 1 : -1;
+                int rest = len - pos - 1;
+                int offsetHours = rest >= 2 ? digits(s, pos + 1, 2) : -1;
+                int offsetMinutes = -1;
+                if (rest == 5 && s.charAt(pos + 3) == ':') {
+                    offsetMinutes = digits(s, pos + 4, 2);
+                } else if (rest == 4) {
+                    offsetMinutes = digits(s, pos + 3, 2);
+                } else if (rest == 2) {
+                    offsetMinutes = 0;
+                }
+                if (offsetHours >= 0 && offsetHours <= 18 && offsetMinutes >= 0 && offsetMinutes < 60) {
+                    offsetSeconds = sign * (offsetHours * 3600 + offsetMinutes * 60);
+                }
+            }
+
+            if (year >= 0 && month >= 0 && day >= 0 && hour >= 0 && hour < 24 && minute >= 0 && minute < 60
+                    && second >= 0 && second < 60 && offsetSeconds != Integer.MIN_VALUE) {
+                long epochDay = LocalDate.of(year, month, day).toEpochDay();
+                long epochSecond = epochDay * 86400 + hour * 3600L + minute * 60L + second - offsetSeconds;
+                return epochSecond * 1000 + millis;
+            }
+        }
+
+        // plain numbers are epoch seconds, optionally with a fraction, like InstantDeserializer reads them
+        int periods = countPeriods(s);
+        if (periods == 0) {
+            return Math.multiplyExact(Long.parseLong(s), 1000);
+        }
+        if (periods == 1) {
+            return decimalSecondsMillis(new BigDecimal(s));
+        }
+        try {
+            return DateTimeFormatter.ISO_INSTANT.parse(s, Instant::from).toEpochMilli();
+        } catch (DateTimeException e) {
+            return OffsetDateTime.parse(s).toInstant().toEpochMilli();
+        }
+    }
+
+    /**
+     * Epoch millis of a number of epoch seconds, rounded down like Instant.toEpochMilli.
+     * @param seconds
+     * @return
+     */
+    private static long decimalSecondsMillis(BigDecimal seconds) {
+        return seconds.movePointRight(3).setScale(0, RoundingMode.FLOOR).longValueExact();
+    }
+
+    /**
+     * @param s
+     * @return the number of periods if s is a number (digits, periods and a leading minus), -1 otherwise
+     */
+    private static int countPeriods(String s) {
+        int periods = 0;
+        int digitCount = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (isDigit(c)) {
+                digitCount++;
+            } else if (c == '.') {
+                periods++;
+            } else if (c != '-' || i != 0) {
+                return -1;
+            }
+        }
+        return digitCount > 0 ? periods : -1;
+    }
+
+    private static int digits(String s, int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            char c = s.charAt(i);
+            if (!isDigit(c)) return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,671 @@
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Columnar (struct-of-arrays) storage for articles. Every article is a row index,
+ * every field is a parallel array. Language, category and author are dictionary-encoded,
+ * uuids in the canonical lowercase 8-4-4-4-12 form are kept as two longs.
+ *
+ * Texts are the bulk of the corpus and are only read by the keyword tokenizer, so they are kept
+ * off the heap: every text is encoded to UTF-8 into a direct buffer chunk of the store that added
+ * it and the row keeps the chunk, offset and length. A chunk is freed once no row refers to it,
+ * see setText and dropTexts. Direct memory is capped by -XX:MaxDirectMemorySize (-Xmx by default),
+ * so the chunks only take TEXT_DIRECT_SHARE of it, leaving the rest to the I/O buffers, and the
+ * chunks past that go on the heap.
+ */
+public class ArticleStore {
+    public static final int NONE = StringDictionary.NONE;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    // size of the first text chunk of a store, later ones double up to MAX_TEXT_CHUNK
+    static final int MIN_TEXT_CHUNK = 64 * 1024;
+    static final int MAX_TEXT_CHUNK = 4 * 1024 * 1024;
+    // share of the direct memory the text chunks may take
+    static final double TEXT_DIRECT_SHARE = 0.75;
+    private static final BufferPoolMXBean DIRECT_POOL = directPool();
+    private static final long TEXT_DIRECT_LIMIT = (long) (TEXT_DIRECT_SHARE * maxDirectMemory());
+
+    private final StringDictionary languageDictionary;
+    private final StringDictionary categoryDictionary;
+    private final StringDictionary authorDictionary;
+
+    private int size;
+    private long[] published;
+    private long[] uuidHi;
+    private long[] uuidLo;
+    // only allocated when a uuid is not in canonical form, null entries otherwise
+    private String[] rawUuids;
+    private String[] titles;
+    private String[] urls;
+    // text of row r is textChunks[r] at [textOffsets[r], textOffsets[r] + textLengths[r]), none if null
+    private ByteBuffer[] textChunks;
+    private int[] textOffsets;
+    private int[] textLengths;
+    // chunk the next text is appended to
+    private ByteBuffer textChunk;
+    // encodes the texts straight into the chunk, created on first use
+    private CharsetEncoder textEncoder;
+    private int[] languages;
+    private int[] authors;
+    // categories of row r are categoryIds[categoryStart[r] .. categoryStart[r + 1])
+    private int[] categoryStart;
+    private int[] categoryIds;
+    // where the row was parsed from: file id and index of the article in that file
+    private int[] sourceFiles;
+    private int[] sourceOrdinals;
+
+    public ArticleStore() {
+        this(new StringDictionary(), new StringDictionary(), new StringDictionary(), 1024);
+    }
+
+    private ArticleStore(StringDictionary languageDictionary, StringDictionary categoryDictionary,
+                         StringDictionary authorDictionary, int capacity) {
+        this.languageDictionary = languageDictionary;
+        this.categoryDictionary = categoryDictionary;
+        this.authorDictionary = authorDictionary;
+        capacity = Math.max(capacity, 16);
+        published = new long[capacity];
+        uuidHi = new long[capacity];
+        uuidLo = new long[capacity];
+        titles = new String[capacity];
+        urls = new String[capacity];
+        textChunks = new ByteBuffer[capacity];
+        textOffsets = new int[capacity];
+        textLengths = new int[capacity];
+        languages = new int[capacity];
+        authors = new int[capacity];
+        categoryStart = new int[capacity + 1];
+        categoryIds = new int[capacity];
+        sourceFiles = new int[capacity];
+        sourceOrdinals = new int[capacity];
+    }
+
+    /**
+     * Creates an empty store sharing this store's dictionaries, so ids are comparable between them.
+     * @return
+     */
+    public ArticleStore newPart() {
+        return new ArticleStore(languageDictionary, categoryDictionary, authorDictionary, 1024);
+    }
+
+    /**
+     * Interns the languages and categories listed in the inputs, the ones of the articles follow.
+     * @param languages may be null or hold nulls
+     * @param categories may be null or hold nulls
+     */
+    public void seedDictionaries(String[] languages, String[] categories) {
+        if (languages != null) {
+            for (String language : languages) if (language != null) languageDictionary.intern(language);
+        }
+        if (categories != null) {
+            for (String category : categories) if (category != null) categoryDictionary.intern(category);
+        }
+    }
+
+    /**
+     * Appends an article as a new row, with an unknown source.
+     * @param art
+     * @return the row index
+     */
+    public int add(Article art) {
+        return add(art, NONE, NONE);
+    }
+
+    /**
+     * Appends an article as a new row.
+     * @param art
+     * @param sourceFile id of the file it was parsed from
+     * @param sourceOrdinal index of the article in that file
+     * @return the row index
+     */
+    public int add(Article art, int sourceFile, int sourceOrdinal) {
+        if (size == published.length) grow();
+        int row = size;
+
+        published[row] = art.getPublishedMillis();
+        setUuid(row, art.getUuid());
+        titles[row] = art.getTitle();
+        urls[row] = art.getUrl();
+        setText(row, art.getText());
+        languages[row] = art.getLanguage() != null ? languageDictionary.intern(art.getLanguage()) : NONE;
+
+        String author = art.getAuthor();
+        authors[row] = author != null && !author.isBlank() ? authorDictionary.intern(author) : NONE;
+
+        int start = categoryStart[row];
+        int end = start;
+        List<String> cats = art.getCategories();
+        if (cats != null) {
+            for (String cat : cats) {
+                int id = categoryDictionary.intern(cat);
+                boolean seen = false;
+                for (int k = start; k < end; k++) {
+                    if (categoryIds[k] == id) {
+                        seen = true;
+                        break;
+                    }
+                }
+                if (!seen) {
+                    if (end == categoryIds.length) categoryIds = Arrays.copyOf(categoryIds, end * 2);
+                    categoryIds[end++] = id;
+                }
+            }
+        }
+        categoryStart[row + 1] = end;
+        sourceFiles[row] = sourceFile;
+        sourceOrdinals[row] = sourceOrdinal;
+
+        size++;
+        return row;
+    }
+
+    /**
+     * Concatenates parts created by newPart() into a single store, rows keep their order.
+     * @param parts
+     * @return
+     */
+    public static ArticleStore concat(List<ArticleStore> parts) {
+        if (parts.size() == 1) return parts.get(0);
+
+        int total = 0;
+        for (ArticleStore part : parts) total += part.size;
+        ArticleStore first = parts.get(0);
+        ArticleStore res = new ArticleStore(first.languageDictionary, first.categoryDictionary,
+                first.authorDictionary, total);
+
+        int totalCategories = 0;
+        for (ArticleStore part : parts) totalCategories += part.categoryStart[part.size];
+        res.categoryIds = new int[Math.max(totalCategories, 16)];
+
+        for (ArticleStore part : parts) {
+            int n = part.size;
+            int at = res.size;
+            System.arraycopy(part.published, 0, res.published, at, n);
+            System.arraycopy(part.uuidHi, 0, res.uuidHi, at, n);
+            System.arraycopy(part.uuidLo, 0, res.uuidLo, at, n);
+            System.arraycopy(part.titles, 0, res.titles, at, n);
+            System.arraycopy(part.urls, 0, res.urls, at, n);
+            System.arraycopy(part.textChunks, 0, res.textChunks, at, n);
+            System.arraycopy(part.textOffsets, 0, res.textOffsets, at, n);
+            System.arraycopy(part.textLengths, 0, res.textLengths, at, n);
+            System.arraycopy(part.languages, 0, res.languages, at, n);
+            System.arraycopy(part.authors, 0, res.authors, at, n);
+            System.arraycopy(part.sourceFiles, 0, res.sourceFiles, at, n);
+            System.arraycopy(part.sourceOrdinals, 0, res.sourceOrdinals, at, n);
+            if (part.rawUuids != null) {
+                if (res.rawUuids == null) res.rawUuids = new String[res.published.length];
+                System.arraycopy(part.rawUuids, 0, res.rawUuids, at, n);
+            }
+
+            int catBase = res.categoryStart[at];
+            int catCount = part.categoryStart[n];
+            System.arraycopy(part.categoryIds, 0, res.categoryIds, catBase, catCount);
+            for (int r = 1; r <= n; r++) {
+                res.categoryStart[at + r] = catBase + part.categoryStart[r];
+            }
+            res.size += n;
+        }
+        return res;
+    }
+
+    private void grow() {
+        int capacity = published.length * 2;
+        published = Arrays.copyOf(published, capacity);
+        uuidHi = Arrays.copyOf(uuidHi, capacity);
+        uuidLo = Arrays.copyOf(uuidLo, capacity);
+        titles = Arrays.copyOf(titles, capacity);
+        urls = Arrays.copyOf(urls, capacity);
+        textChunks = Arrays.copyOf(textChunks, capacity);
+        textOffsets = Arrays.copyOf(textOffsets, capacity);
+        textLengths = Arrays.copyOf(textLengths, capacity);
+        languages = Arrays.copyOf(languages, capacity);
+        authors = Arrays.copyOf(authors, capacity);
+        categoryStart = Arrays.copyOf(categoryStart, capacity + 1);
+        sourceFiles = Arrays.copyOf(sourceFiles, capacity);
+        sourceOrdinals = Arrays.copyOf(sourceOrdinals, capacity);
+        if (rawUuids != null) rawUuids = Arrays.copyOf(rawUuids, capacity);
+    }
+
+    private void setUuid(int row, String uuid) {
+        if (isCanonicalUuid(uuid)) {
+            uuidHi[row] = parseHex(uuid, 0, 8) << 32 | parseHex(uuid, 9, 4) << 16 | parseHex(uuid, 14, 4);
+            uuidLo[row] = parseHex(uuid, 19, 4) << 48 | parseHex(uuid, 24, 12);
+            if (rawUuids != null) rawUuids[row] = null;
+        } else {
+            uuidHi[row] = 0;
+            uuidLo[row] = 0;
+            if (rawUuids == null) rawUuids = new String[published.length];
+            rawUuids[row] = uuid != null ? uuid : "";
+        }
+    }
+
+    /**
+     * A canonical uuid is 36 chars of lowercase hex with dashes at 8, 13, 18 and 23.
+     * For those, String order is the same as unsigned order of the two longs.
+     * @param uuid
+     * @return
+     */
+    static boolean isCanonicalUuid(String uuid) {
+        if (uuid == null || uuid.length() != 36) return false;
+        for (int i = 0; i < 36; i++) {
+            char c = uuid.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') return false;
+            } else if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseHex(String s, int from, int count) {
+        long value = 0;
+        for (int i = from; i < from + count; i++) {
+            char c = s.charAt(i);
+            value = value << 4 | (c <= '9' ? c - '0' : c - 'a' + 10);
+        }
+        return value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long published(int row) {
+        return published[row];
+    }
+
+    public Instant publishedInstant(int row) {
+        return Instant.ofEpochMilli(published[row]);
+    }
+
+    public long uuidHi(int row) {
+        return uuidHi[row];
+    }
+
+    public long uuidLo(int row) {
+        return uuidLo[row];
+    }
+
+    /**
+     * @param row
+     * @return true if the uuid of row is stored only as two longs
+     */
+    public boolean hasBinaryUuid(int row) {
+        return rawUuids == null || rawUuids[row] == null;
+    }
+
+    /**
+     * @return true if every uuid in the store is stored as two longs
+     */
+    public boolean allBinaryUuids() {
+        if (rawUuids == null) return true;
+        for (int r = 0; r < size; r++) {
+            if (rawUuids[r] != null) return false;
+        }
+        return true;
+    }
+
+    public String uuid(int row) {
+        if (!hasBinaryUuid(row)) return rawUuids[row];
+        StringBuilder sb = new StringBuilder(36);
+        appendUuid(sb, row);
+        return sb.toString();
+    }
+
+    public void appendUuid(StringBuilder sb, int row) {
+        if (!hasBinaryUuid(row)) {
+            sb.append(rawUuids[row]);
+            return;
+        }
+        appendUuid(sb, uuidHi[row], uuidLo[row]);
+    }
+
+    /**
+     * Appends the canonical form of the uuid with the given two longs.
+     * @param sb
+     * @param hi
+     * @param lo
+     */
+    public static void appendUuid(StringBuilder sb, long hi, long lo) {
+        appendHex(sb, hi >>> 32, 8);
+        sb.append('-');
+        appendHex(sb, hi >>> 16, 4);
+        sb.append('-');
+        appendHex(sb, hi, 4);
+        sb.append('-');
+        appendHex(sb, lo >>> 48, 4);
+        sb.append('-');
+        appendHex(sb, lo, 12);
+    }
+
+    private static void appendHex(StringBuilder sb, long value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            sb.append(HEX[(int) (value >>> shift) & 0xF]);
+        }
+    }
+
+    /**
+     * Compares the uuids of two rows the same way String.compareTo would.
+     * @param a
+     * @param b
+     * @return
+     */
+    public int compareUuid(int a, int b) {
+        if (hasBinaryUuid(a) && hasBinaryUuid(b)) {
+            int cmp = Long.compareUnsigned(uuidHi[a], uuidHi[b]);
+            return cmp != 0 ? cmp : Long.compareUnsigned(uuidLo[a], uuidLo[b]);
+        }
+        return uuid(a).compareTo(uuid(b));
+    }
+
+    /**
+     * Article order: published descending, then uuid ascending.
+     * @param a
+     * @param b
+     * @return
+     */
+    public int compareRows(int a, int b) {
+        int cmp = Long.compare(published[b], published[a]);
+        return cmp != 0 ? cmp : compareUuid(a, b);
+    }
+
+    public String title(int row) {
+        return titles[row];
+    }
+
+    public String url(int row) {
+        return urls[row];
+    }
+
+    /**
+     * Decodes the text of a row, the tokenizer reads textBytes instead.
+     * @param row
+     * @return the text, or null if the row has none
+     */
+    public String text(int row) {
+        ByteBuffer bytes = textBytes(row);
+        return bytes != null ? StandardCharsets.UTF_8.decode(bytes).toString() : null;
+    }
+
+    /**
+     * @param row
+     * @return the UTF-8 bytes of the text of a row, or null if the row has none
+     */
+    public ByteBuffer textBytes(int row) {
+        ByteBuffer chunk = textChunks[row];
+        return chunk != null ? chunk.slice(textOffsets[row], textLengths[row]) : null;
+    }
+
+    public boolean hasText(int row) {
+        return textChunks[row] != null;
+    }
+
+    /**
+     * @param row
+     * @return length of the text of a row in UTF-8 bytes, 0 if it has none
+     */
+    public int textLength(int row) {
+        return textChunks[row] != null ? textLengths[row] : 0;
+    }
+
+    /**
+     * Sets the text of a row, or drops it for null. Not thread-safe, like add.
+     * @param row
+     * @param text
+     */
+    public void setText(int row, String text) {
+        if (text == null) {
+            textChunks[row] = null;
+            return;
+        }
+        if (textEncoder == null) {
+            // replaces lone surrogates with '?', like String.getBytes
+            textEncoder = StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        if (textChunk == null) textChunk = allocateChunk(MIN_TEXT_CHUNK);
+        int start = textChunk.position();
+        // a text that does not fit is encoded again into a new chunk, big enough for any text of its length
+        while (!encode(text, textChunk)) {
+            textChunk.position(start);
+            int size = Math.min(MAX_TEXT_CHUNK, 2 * textChunk.capacity());
+            textChunk = allocateChunk((int) Math.max(size, (long) text.length() * 3));
+            start = 0;
+        }
+        textChunks[row] = textChunk;
+        textOffsets[row] = start;
+        textLengths[row] = textChunk.position() - start;
+    }
+
+    /**
+     * @param text
+     * @param chunk
+     * @return false if the text does not fit in the rest of chunk
+     */
+    private boolean encode(String text, ByteBuffer chunk) {
+        textEncoder.reset();
+        CoderResult result = textEncoder.encode(CharBuffer.wrap(text), chunk, true);
+        if (!result.isOverflow()) result = textEncoder.flush(chunk);
+        return !result.isOverflow();
+    }
+
+    /**
+     * A direct chunk, or a heap one once the chunks took their share of the direct memory.
+     * @param size
+     * @return
+     */
+    private static ByteBuffer allocateChunk(int size) {
+        if (DIRECT_POOL == null || DIRECT_POOL.getMemoryUsed() + size <= TEXT_DIRECT_LIMIT) {
+            try {
+                return ByteBuffer.allocateDirect(size);
+            } catch (OutOfMemoryError e) {
+                // direct memory ran out under the other buffers, the heap may still have room
+            }
+        }
+        return ByteBuffer.allocate(size);
+    }
+
+    private static BufferPoolMXBean directPool() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) return pool;
+        }
+        return null;
+    }
+
+    /**
+     * @return -XX:MaxDirectMemorySize, or the heap size it defaults to
+     */
+    private static long maxDirectMemory() {
+        try {
+            HotSpotDiagnosticMXBean vm = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            long max = Long.parseLong(vm.getVMOption("MaxDirectMemorySize").getValue());
+            if (max > 0) return max;
+        } catch (RuntimeException e) {
+            // not a HotSpot VM
+        }
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    /**
+     * Drops every text, their chunks are freed once the parts sharing them are gone too.
+     */
+    public void dropTexts() {
+        Arrays.fill(textChunks, null);
+        textChunk = null;
+    }
+
+    public int sourceFile(int row) {
+        return sourceFiles[row];
+    }
+
+    public int sourceOrdinal(int row) {
+        return sourceOrdinals[row];
+    }
+
+    public int language(int row) {
+        return languages[row];
+    }
+
+    public int author(int row) {
+        return authors[row];
+    }
+
+    public int categoryStart(int row) {
+        return categoryStart[row];
+    }
+
+    public int categoryEnd(int row) {
+        return categoryStart[row + 1];
+    }
+
+    public int categoryAt(int position) {
+        return categoryIds[position];
+    }
+
+    public StringDictionary languageDictionary() {
+        return languageDictionary;
+    }
+
+    public StringDictionary categoryDictionary() {
+        return categoryDictionary;
+    }
+
+    public StringDictionary authorDictionary() {
+        return authorDictionary;
+    }
+
+    /**
+     * Writes every column except the texts, followed by the dictionaries.
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        languageDictionary.writeTo(out);
+        categoryDictionary.writeTo(out);
+        authorDictionary.writeTo(out);
+
+        out.writeInt(size);
+        for (int r = 0; r < size; r++) {
+            out.writeLong(published[r]);
+            out.writeLong(uuidHi[r]);
+            out.writeLong(uuidLo[r]);
+            out.writeInt(languages[r]);
+            out.writeInt(authors[r]);
+            out.writeInt(sourceFiles[r]);
+            out.writeInt(sourceOrdinals[r]);
+            writeString(out, hasBinaryUuid(r) ? null : rawUuids[r]);
+            writeString(out, titles[r]);
+            writeString(out, urls[r]);
+            out.writeInt(categoryStart[r + 1] - categoryStart[r]);
+            for (int c = categoryStart[r]; c < categoryStart[r + 1]; c++) out.writeInt(categoryIds[c]);
+        }
+    }
+
+    /**
+     * Reads a store written by writeTo, texts are all null.
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static ArticleStore readFrom(DataInputStream in) throws IOException {
+        return readFrom(in, null);
+    }
+
+    /**
+     * Reads a store written by writeTo as a part of shared (see newPart): the ids of the
+     * written dictionaries are translated to the ids of shared's dictionaries.
+     * @param in
+     * @param shared
+     * @return
+     * @throws IOException
+     */
+    public static ArticleStore readFrom(DataInputStream in, ArticleStore shared) throws IOException {
+        StringDictionary languageDictionary = StringDictionary.readFrom(in);
+        StringDictionary categoryDictionary = StringDictionary.readFrom(in);
+        StringDictionary authorDictionary = StringDictionary.readFrom(in);
+        int[] languageIds = null;
+        int[] categoryIds = null;
+        int[] authorIds = null;
+        if (shared != null) {
+            languageIds = translate(languageDictionary, shared.languageDictionary);
+            categoryIds = translate(categoryDictionary, shared.categoryDictionary);
+            authorIds = translate(authorDictionary, shared.authorDictionary);
+            languageDictionary = shared.languageDictionary;
+            categoryDictionary = shared.categoryDictionary;
+            authorDictionary = shared.authorDictionary;
+        }
+
+        int n = in.readInt();
+        ArticleStore res = new ArticleStore(languageDictionary, categoryDictionary, authorDictionary, n);
+        for (int r = 0; r < n; r++) {
+            res.published[r] = in.readLong();
+            res.uuidHi[r] = in.readLong();
+            res.uuidLo[r] = in.readLong();
+            res.languages[r] = translate(languageIds, in.readInt());
+            res.authors[r] = translate(authorIds, in.readInt());
+            res.sourceFiles[r] = in.readInt();
+            res.sourceOrdinals[r] = in.readInt();
+            String raw = readString(in);
+            if (raw != null) {
+                if (res.rawUuids == null) res.rawUuids = new String[res.published.length];
+                res.rawUuids[r] = raw;
+            }
+            res.titles[r] = readString(in);
+            res.urls[r] = readString(in);
+
+            int count = in.readInt();
+            int start = res.categoryStart[r];
+            if (start + count > res.categoryIds.length) {
+                res.categoryIds = Arrays.copyOf(res.categoryIds, Math.max(res.categoryIds.length * 2, start + count));
+            }
+            for (int c = 0; c < count; c++) res.categoryIds[start + c] = translate(categoryIds, in.readInt());
+            res.categoryStart[r + 1] = start + count;
+            res.size++;
+        }
+        return res;
+    }
+
+    private static int[] translate(StringDictionary from, StringDictionary to) {
+        int[] ids = new int[from.size()];
+        for (int id = 0; id < ids.length; id++) ids[id] = to.intern(from.get(id));
+        return ids;
+    }
+
+    private static int translate(int[] ids, int id) {
+        return ids == null || id == NONE ? id : ids[id];
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,291 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Text writer that encodes straight into pooled direct ByteBuffers and hands them to a
+ * FileChannel with gathering writes, so no output file is ever built as a String.
+ * Not thread-safe, every task writes through its own instance.
+ */
+public class ChannelWriter implements Closeable {
+    static final int BUFFER_SIZE = 64 * 1024;
+    // buffers filled before one gathering write
+    static final int GATHER = 4;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final FileChannel channel;
+    private final ByteBuffer[] buffers = new ByteBuffer[GATHER];
+    private int current;
+    private ByteBuffer buf;
+    private long written;
+
+    /**
+     * Opens a writer that replaces the file.
+     * @param path
+     * @throws IOException
+     */
+    public ChannelWriter(Path path) throws IOException {
+        this(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING), 0);
+    }
+
+    /**
+     * Opens a writer on an existing file, starting at position. Several writers can fill
+     * disjoint ranges of the same file in parallel.
+     * @param path
+     * @param position
+     * @throws IOException
+     */
+    public ChannelWriter(Path path, long position) throws IOException {
+        this(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE), position);
+    }
+
+    private ChannelWriter(FileChannel channel, long position) throws IOException {
+        this.channel = channel;
+        channel.position(position);
+        for (int i = 0; i < GATHER; i++) buffers[i] = acquire();
+        buf = buffers[0];
+    }
+
+    public ChannelWriter append(char c) throws IOException {
+        if (c < 0x80) {
+            if (!buf.hasRemaining()) next();
+            buf.put((byte) c);
+            return this;
+        }
+        return append(String.valueOf(c));
+    }
+
+    /**
+     * Appends s as UTF-8, ASCII characters are copied without an encoder.
+     * @param s
+     * @return
+     * @throws IOException
+     */
+    public ChannelWriter append(String s) throws IOException {
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                appendBytes(s.substring(i).getBytes(StandardCharsets.UTF_8));
+                return this;
+            }
+            if (!buf.hasRemaining()) next();
+            buf.put((byte) c);
+        }
+        return this;
+    }
+
+    public ChannelWriter append(long value) throws IOException {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) return append(Long.toString(value));
+            append('-');
+            value = -value;
+        }
+        long div = 1;
+        while (div <= value / 10) div *= 10;
+        for (; div > 0; div /= 10) {
+            append((char) ('0' + (value / div) % 10));
+        }
+        return this;
+    }
+
+    /**
+     * Appends the uuid of a row, formatted from its two longs when it has them.
+     * @param store
+     * @param row
+     * @return
+     * @throws IOException
+     */
+    public ChannelWriter appendUuid(ArticleStore store, int row) throws IOException {
+        if (!store.hasBinaryUuid(row)) return append(store.uuid(row));
+        return appendUuid(store.uuidHi(row), store.uuidLo(row));
+    }
+
+    /**
+     * Appends the canonical form of the uuid with the given two longs.
+     * @param hi
+     * @param lo
+     * @return
+     * @throws IOException
+     */
+    public ChannelWriter appendUuid(long hi, long lo) throws IOException {
+        appendHex(hi >>> 32, 8);
+        append('-');
+        appendHex(hi >>> 16, 4);
+        append('-');
+        appendHex(hi, 4);
+        append('-');
+        appendHex(lo >>> 48, 4);
+        append('-');
+        appendHex(lo, 12);
+        return this;
+    }
+
+    /**
+     * Appends epoch millis exactly as Instant.toString() prints them.
+     * @param millis
+     * @return
+     * @throws IOException
+     */
+    public ChannelWriter appendInstant(long millis) throws IOException {
+        long seconds = Math.floorDiv(millis, 1000);
+        int ms = Math.floorMod(millis, 1000);
+        long days = Math.floorDiv(seconds, 86400);
+        int secondOfDay = Math.floorMod(seconds, 86400);
+
+        long date = civilFromDays(days);
+        if (date < 0) return append(Instant.ofEpochMilli(millis).toString());
+        appendDigits(date / 10000, 4);
+        append('-');
+        appendDigits(date / 100 % 100, 2);
+        append('-');
+        appendDigits(date % 100, 2);
+        append('T');
+        appendDigits(secondOfDay / 3600, 2);
+        append(':');
+        appendDigits(secondOfDay / 60 % 60, 2);
+        append(':');
+        appendDigits(secondOfDay % 60, 2);
+        if (ms != 0) {
+            append('.');
+            appendDigits(ms, 3);
+        }
+        return append('Z');
+    }
+
+    /**
+     * Length in bytes of what appendInstant writes.
+     * @param millis
+     * @return
+     */
+    public static int instantLength(long millis) {
+        if (civilFromDays(Math.floorDiv(Math.floorDiv(millis, 1000), 86400)) < 0) {
+            return Instant.ofEpochMilli(millis).toString().length();
+        }
+        return Math.floorMod(millis, 1000) != 0 ? 24 : 20;
+    }
+
+    /**
+     * Length in bytes of what appendUuid writes.
+     * @param store
+     * @param row
+     * @return
+     */
+    public static int uuidLength(ArticleStore store, int row) {
+        if (store.hasBinaryUuid(row)) return 36;
+        return utf8Length(store.uuid(row));
+    }
+
+    public static int utf8Length(String s) {
+        int length = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) return i + s.substring(i).getBytes(StandardCharsets.UTF_8).length;
+        }
+        return length;
+    }
+
+    /**
+     * Gregorian date of an epoch day as yyyyMMdd, or -1 outside years 0000-9999
+     * (those are left to Instant.toString, which adds a sign).
+     * @param epochDay
+     * @return
+     */
+    private static long civilFromDays(long epochDay) {
+        long z = epochDay + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long year = yoe + era * 400;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        long day = doy - (153 * mp + 2) / 5 + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        if (month <= 2) year++;
+        if (year < 0 || year > 9999) return -1;
+        return year * 10000 + month * 100 + day;
+    }
+
+    private void appendDigits(long value, int digits) throws IOException {
+        for (long div = pow10(digits - 1); div > 0; div /= 10) {
+            append((char) ('0' + (value / div) % 10));
+        }
+    }
+
+    private static long pow10(int n) {
+        long res = 1;
+        for (int i = 0; i < n; i++) res *= 10;
+        return res;
+    }
+
+    private void appendHex(long value, int digits) throws IOException {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            if (!buf.hasRemaining()) next();
+            buf.put(HEX[(int) (value >>> shift) & 0xF]);
+        }
+    }
+
+    private void appendBytes(byte[] bytes) throws IOException {
+        int off = 0;
+        while (off < bytes.length) {
+            if (!buf.hasRemaining()) next();
+            int n = Math.min(buf.remaining(), bytes.length - off);
+            buf.put(bytes, off, n);
+            off += n;
+        }
+    }
+
+    /**
+     * Moves to the next buffer, writing all of them once the last one is full.
+     * @throws IOException
+     */
+    private void next() throws IOException {
+        if (current == GATHER - 1) {
+            flush();
+        } else {
+            buf = buffers[++current];
+        }
+    }
+
+    private void flush() throws IOException {
+        int used = current + 1;
+        for (int i = 0; i < used; i++) buffers[i].flip();
+        long remaining = 0;
+        for (int i = 0; i < used; i++) remaining += buffers[i].remaining();
+        while (remaining > 0) {
+            long n = channel.write(buffers, 0, used);
+            remaining -= n;
+            written += n;
+        }
+        for (int i = 0; i < used; i++) buffers[i].clear();
+        current = 0;
+        buf = buffers[0];
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            Metrics.bytesWritten(written);
+        } finally {
+            for (int i = 0; i < GATHER; i++) {
+                POOL.offer(buffers[i]);
+                buffers[i] = null;
+            }
+            channel.close();
+        }
+    }
+
+    private static ByteBuffer acquire() {
+        ByteBuffer b = POOL.poll();
+        return b != null ? b.clear() : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+}
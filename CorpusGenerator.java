@@ -0,0 +1,376 @@
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Deterministic synthetic news corpus for scale testing.
+ *
+ * Writes article JSON files plus the articles.txt / inputs.txt lists (and the languages,
+ * categories and english_linking_words files they point to) in the format DataLoader.readPaths
+ * expects. The output only depends on the options and the seed: every file is generated from its
+ * own random stream, and a repeated uuid or title is derived again from the index of the article
+ * it copies, so files are generated in parallel without keeping earlier articles in memory.
+ *
+ * Usage: CorpusGenerator outDir [--articles N] [--articles-per-file N] [--seed N] [--threads N]
+ *        [--dup-uuid rate] [--dup-title rate] [--languages name:weight;...] [--categories name:weight;...]
+ *        [--max-categories N] [--vocabulary N] [--zipf s] [--words N] [--authors N] [--author-skew s]
+ *        [--stop-words N]
+ */
+public class CorpusGenerator {
+    // most frequent words of the vocabulary, the first --stop-words of them are the linking words
+    static final String[] COMMON_WORDS = {"the", "of", "and", "a", "to", "in", "is", "you", "that", "it",
+            "he", "was", "for", "on", "are", "as", "with", "his", "they", "i", "at", "be", "this", "have",
+            "from", "or", "one", "had", "by", "but", "not", "what", "all", "were", "we", "when", "your",
+            "can", "said", "there", "use", "an", "each", "which", "she", "do", "how", "their", "if", "will"};
+
+    private static final long START_MILLIS = Instant.parse("2015-01-01T00:00:00Z").toEpochMilli();
+    private static final long RANGE_MILLIS = 10L * 365 * 24 * 3600 * 1000;
+
+    /**
+     * Generation options, the defaults give a small corpus.
+     */
+    public static class Config {
+        int articles = 10_000;
+        int articlesPerFile = 1_000;
+        long seed = 42;
+        double dupUuidRate = 0.02;
+        double dupTitleRate = 0.02;
+        Map<String, Double> languages = parseWeights("english:0.6;french:0.15;german:0.15;spanish:0.1");
+        Map<String, Double> categories = parseWeights("World news:0.25;Politics:0.2;Business, Finance:0.15;"
+                + "Sports:0.15;Science & Tech:0.1;Health:0.1;Culture:0.05");
+        int maxCategories = 3;
+        int vocabulary = 50_000;
+        double zipf = 1.0;
+        int words = 300;
+        int authors = 2_000;
+        double authorSkew = 1.1;
+        int stopWords = 30;
+    }
+
+    private final Config config;
+    private final String[] vocabulary;
+    private final double[] wordCdf;
+    private final double[] authorCdf;
+    private final String[] languageNames;
+    private final double[] languageCdf;
+    private final String[] categoryNames;
+    private final double[] categoryCdf;
+
+    public CorpusGenerator(Config config) {
+        this.config = config;
+        vocabulary = vocabulary(config.vocabulary, config.seed);
+        wordCdf = zipfCdf(vocabulary.length, config.zipf);
+        authorCdf = zipfCdf(config.authors, config.authorSkew);
+        languageNames = config.languages.keySet().toArray(new String[0]);
+        languageCdf = weightCdf(config.languages);
+        categoryNames = config.categories.keySet().toArray(new String[0]);
+        categoryCdf = weightCdf(config.categories);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Invalid number of arguments");
+            System.exit(1);
+        }
+        Config config = new Config();
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--articles" -> config.articles = Integer.parseInt(args[++i]);
+                    case "--articles-per-file" -> config.articlesPerFile = Integer.parseInt(args[++i]);
+                    case "--seed" -> config.seed = Long.parseLong(args[++i]);
+                    case "--threads" -> numThreads = Integer.parseInt(args[++i]);
+                    case "--dup-uuid" -> config.dupUuidRate = Double.parseDouble(args[++i]);
+                    case "--dup-title" -> config.dupTitleRate = Double.parseDouble(args[++i]);
+                    case "--languages" -> config.languages = parseWeights(args[++i]);
+                    case "--categories" -> config.categories = parseWeights(args[++i]);
+                    case "--max-categories" -> config.maxCategories = Integer.parseInt(args[++i]);
+                    case "--vocabulary" -> config.vocabulary = Integer.parseInt(args[++i]);
+                    case "--zipf" -> config.zipf = Double.parseDouble(args[++i]);
+                    case "--words" -> config.words = Integer.parseInt(args[++i]);
+                    case "--authors" -> config.authors = Integer.parseInt(args[++i]);
+                    case "--author-skew" -> config.authorSkew = Double.parseDouble(args[++i]);
+                    case "--stop-words" -> config.stopWords = Integer.parseInt(args[++i]);
+                    default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            if (config.articles < 0 || config.articlesPerFile < 1 || config.authors < 1 || config.vocabulary < 1
+                    || numThreads < 1 || config.languages.isEmpty() || config.categories.isEmpty()) {
+                throw new IllegalArgumentException("counts must be positive and distributions not empty");
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.err.println("Invalid arguments: " + e.getMessage());
+            System.exit(1);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            String[] files = new CorpusGenerator(config).generate(Path.of(args[0]), executor);
+            System.out.println("Wrote " + config.articles + " articles in " + files.length + " files to " + args[0]);
+        } catch (IOException e) {
+            System.err.println("Generator Error: " + e.getMessage());
+            System.exit(1);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Writes the corpus and its list files into outDir.
+     * @param outDir
+     * @param executor
+     * @return the paths of the article files
+     * @throws IOException
+     */
+    public String[] generate(Path outDir, ExecutorService executor) throws IOException {
+        Path articleDir = outDir.resolve("articles");
+        Files.createDirectories(articleDir);
+
+        int numFiles = Math.max(1, (int) Math.ceil((double) config.articles / config.articlesPerFile));
+        String[] names = new String[numFiles];
+        List<Future<?>> futures = new ArrayList<>();
+        for (int f = 0; f < numFiles; f++) {
+            final int file = f;
+            names[f] = String.format("articles/articles_%06d.json", f);
+            final Path path = outDir.resolve(names[f]);
+            futures.add(executor.submit(() -> {
+                writeFile(path, file);
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException("Generator Error: " + e.getMessage(), e);
+            }
+        }
+
+        writeList(outDir.resolve("articles.txt"), List.of(names));
+        writeList(outDir.resolve("languages.txt"), List.of(languageNames));
+        writeList(outDir.resolve("categories.txt"), List.of(categoryNames));
+        writeList(outDir.resolve("english_linking_words.txt"), stopWords(config.stopWords));
+        writeList(outDir.resolve("inputs.txt"), List.of("languages.txt", "categories.txt", "english_linking_words.txt"));
+
+        String[] paths = new String[numFiles];
+        for (int f = 0; f < numFiles; f++) paths[f] = outDir.resolve(names[f]).toString();
+        return paths;
+    }
+
+    /**
+     * The linking words written to english_linking_words.txt.
+     * @param count
+     * @return
+     */
+    public static List<String> stopWords(int count) {
+        return List.of(COMMON_WORDS).subList(0, Math.min(count, COMMON_WORDS.length));
+    }
+
+    private void writeFile(Path path, int file) throws IOException {
+        SplittableRandom random = new SplittableRandom(mix(config.seed ^ mix(file + 1L)));
+        int start = file * config.articlesPerFile;
+        int end = (int) Math.min((long) start + config.articlesPerFile, config.articles);
+        StringBuilder text = new StringBuilder();
+
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path), 1 << 16);
+             JsonGenerator gen = new JsonFactory().createGenerator(out, JsonEncoding.UTF8)) {
+            gen.writeStartArray();
+            for (int i = start; i < end; i++) {
+                int uuidOf = i > 0 && random.nextDouble() < config.dupUuidRate ? random.nextInt(i) : i;
+                int titleOf = i > 0 && random.nextDouble() < config.dupTitleRate ? random.nextInt(i) : i;
+                String language = languageNames[pick(languageCdf, random)];
+
+                gen.writeStartObject();
+                gen.writeStringField("uuid", uuid(uuidOf));
+                gen.writeStringField("url", "https://news.example.com/" + language + "/" + i);
+                // a few articles have a blank author, which is not counted
+                gen.writeStringField("author", random.nextInt(100) == 0 ? "" : "Author " + pick(authorCdf, random));
+                long published = START_MILLIS + random.nextLong(RANGE_MILLIS);
+                if (random.nextInt(3) == 0) published -= published % 1000;
+                gen.writeStringField("published", Instant.ofEpochMilli(published).toString());
+                gen.writeStringField("title", title(titleOf));
+                gen.writeStringField("text", text(random, text));
+                gen.writeStringField("language", language);
+                gen.writeArrayFieldStart("categories");
+                int numCategories = 1 + random.nextInt(Math.max(1, config.maxCategories));
+                for (int c = 0; c < numCategories; c++) {
+                    gen.writeString(categoryNames[pick(categoryCdf, random)]);
+                }
+                gen.writeEndArray();
+                gen.writeEndObject();
+            }
+            gen.writeEndArray();
+        }
+    }
+
+    private String text(SplittableRandom random, StringBuilder sb) {
+        sb.setLength(0);
+        int numWords = config.words / 2 + random.nextInt(config.words + 1);
+        for (int w = 0; w < numWords; w++) {
+            String word = vocabulary[pick(wordCdf, random)];
+            int r = random.nextInt(20);
+            if (r == 0) {
+                sb.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+            } else {
+                sb.append(word);
+            }
+            if (r == 1) sb.append(',');
+            else if (r == 2) sb.append('.');
+            else if (r == 3) sb.append("'s");
+            sb.append(random.nextInt(40) == 0 ? '\n' : ' ');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Uuid of the article with the given index, the same for every article that copies it.
+     * @param index
+     * @return
+     */
+    private String uuid(int index) {
+        long hi = mix(config.seed ^ mix(2L * index + 1));
+        long lo = mix(hi ^ 0x9E3779B97F4A7C15L);
+        return new UUID(hi, lo).toString();
+    }
+
+    private String title(int index) {
+        SplittableRandom random = new SplittableRandom(mix(config.seed ^ mix(2L * index + 2)));
+        StringBuilder sb = new StringBuilder();
+        int numWords = 4 + random.nextInt(6);
+        for (int w = 0; w < numWords; w++) {
+            if (w > 0) sb.append(' ');
+            sb.append(vocabulary[pick(wordCdf, random)]);
+        }
+        return sb.append(' ').append(index).toString();
+    }
+
+    /**
+     * Index drawn from a cumulative distribution.
+     * @param cdf
+     * @param random
+     * @return
+     */
+    private static int pick(double[] cdf, SplittableRandom random) {
+        double u = random.nextDouble() * cdf[cdf.length - 1];
+        int lo = 0, hi = cdf.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cdf[mid] <= u) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Cumulative weights of ranks 1..n with weight 1/rank^s.
+     * @param n
+     * @param s
+     * @return
+     */
+    private static double[] zipfCdf(int n, double s) {
+        double[] cdf = new double[n];
+        double sum = 0;
+        for (int k = 0; k < n; k++) {
+            sum += 1.0 / Math.pow(k + 1, s);
+            cdf[k] = sum;
+        }
+        return cdf;
+    }
+
+    private static double[] weightCdf(Map<String, Double> weights) {
+        double[] cdf = new double[weights.size()];
+        double sum = 0;
+        int k = 0;
+        for (double w : weights.values()) {
+            sum += w;
+            cdf[k++] = sum;
+        }
+        return cdf;
+    }
+
+    /**
+     * Vocabulary ordered by frequency rank: the common words first, then unique pseudo-words.
+     * @param size
+     * @param seed
+     * @return
+     */
+    private static String[] vocabulary(int size, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        String[] words = new String[Math.max(size, 1)];
+        Set<String> seen = new HashSet<>();
+        int n = 0;
+        for (String w : COMMON_WORDS) {
+            if (n == words.length) break;
+            words[n++] = w;
+            seen.add(w);
+        }
+        StringBuilder sb = new StringBuilder();
+        while (n < words.length) {
+            sb.setLength(0);
+            int len = 2 + random.nextInt(11);
+            for (int j = 0; j < len; j++) sb.append((char) ('a' + random.nextInt(26)));
+            String w = sb.toString();
+            if (seen.add(w)) words[n++] = w;
+        }
+        return words;
+    }
+
+    /**
+     * Parses "name:weight;name:weight", names may contain commas and spaces.
+     * @param spec
+     * @return
+     */
+    static Map<String, Double> parseWeights(String spec) {
+        Map<String, Double> weights = new LinkedHashMap<>();
+        for (String entry : spec.split(";")) {
+            if (entry.isBlank()) continue;
+            int colon = entry.lastIndexOf(':');
+            if (colon < 0) {
+                weights.put(entry.trim(), 1.0);
+            } else {
+                weights.put(entry.substring(0, colon).trim(), Double.parseDouble(entry.substring(colon + 1)));
+            }
+        }
+        return weights;
+    }
+
+    private static void writeList(Path path, List<String> lines) throws IOException {
+        StringBuilder sb = new StringBuilder().append(lines.size()).append('\n');
+        for (String line : lines) sb.append(line).append('\n');
+        Files.writeString(path, sb.toString());
+    }
+
+    /**
+     * 64-bit finalizer from MurmurHash3.
+     * @param h
+     * @return
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
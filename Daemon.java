@@ -0,0 +1,341 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Resident mode (--daemon): the JVM, the auxiliary inputs and the state of the last refresh stay
+ * in memory and the article directories are watched for changes.
+ *
+ * The directory of the article list and the directories of the listed files are watched with a
+ * WatchService. A change of the list makes it read again, a new .json file in a watched directory
+ * is folded in after the listed ones and dropped again if it is deleted. Once the changes have
+ * settled for SETTLE_MILLIS, and at most once every --refresh seconds, the outputs are refreshed
+ * by an incremental run from the previous refresh's state (see IncrementalState.reuse), so only
+ * the new files are parsed.
+ *
+ * With --port N the results of the last refresh are served on the loopback address:
+ * - /keywords?top=N       "word count" lines of the N most frequent keywords, all by default
+ * - /categories/NAME      uuids of a category, by name or by output file name
+ * - /languages/NAME       uuids of a language, by name or by output file name
+ * - /report               the report
+ * - /refresh              refreshes now and returns the new report
+ */
+public class Daemon {
+    // quiet time after the last change before a refresh, so files being written are read whole
+    static final long SETTLE_MILLIS = 500;
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * Results of one refresh. Every run builds new maps, so a snapshot is never changed once published.
+     */
+    static class Snapshot {
+        final Map<String, UuidPostings> categories;
+        final Map<String, UuidPostings> languages;
+        final Ranking.Ranked keywords;
+        final String report;
+        // output file name, without the extension, of every category and language
+        final Map<String, String> categoryFiles = new HashMap<>();
+        final Map<String, String> languageFiles = new HashMap<>();
+
+        Snapshot(Map<String, UuidPostings> categories, Map<String, UuidPostings> languages,
+                 Ranking.Ranked keywords, String report) {
+            this.categories = categories;
+            this.languages = languages;
+            this.keywords = keywords;
+            this.report = report;
+            categories.keySet().forEach(k -> categoryFiles.put(stem(OutputWriter.categoryFileName(k)), k));
+            languages.keySet().forEach(k -> languageFiles.put(stem(OutputWriter.languageFileName(k)), k));
+        }
+
+        private static String stem(String fileName) {
+            return fileName.substring(0, fileName.length() - ".txt".length());
+        }
+    }
+
+    private static volatile Snapshot snapshot;
+    // refreshes requested over HTTP, completed by the watch loop
+    private static final BlockingQueue<CompletableFuture<Snapshot>> requests = new LinkedBlockingQueue<>();
+
+    private final Path articlesPath;
+    private final WatchService watcher;
+    private final Set<Path> watched = new HashSet<>();
+    private String[] listed = new String[0];
+    // absolute paths of the listed files
+    private final Set<Path> listedFiles = new HashSet<>();
+    // unlisted .json files that appeared in a watched directory, in arrival order
+    private final Set<String> discovered = new LinkedHashSet<>();
+
+    private Daemon(Path articlesPath, WatchService watcher) {
+        this.articlesPath = articlesPath.toAbsolutePath().normalize();
+        this.watcher = watcher;
+    }
+
+    /**
+     * Refreshes the outputs whenever the articles change, until the process is stopped.
+     * @param articlesPath the article list
+     * @param refreshSeconds minimum time between two refreshes triggered by changes
+     * @param port port of the query endpoint, none if negative
+     * @param metricsPath
+     * @param numThreads
+     */
+    public static void run(Path articlesPath, int refreshSeconds, int port, Path metricsPath, int numThreads) {
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            new Daemon(articlesPath, watcher).loop(TimeUnit.SECONDS.toMillis(refreshSeconds), port, metricsPath, numThreads);
+        } catch (IOException e) {
+            System.err.println("Daemon Error: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void loop(long refreshMillis, int port, Path metricsPath, int numThreads)
+            throws IOException, InterruptedException {
+        readList();
+        IncrementalState state = refresh(null, metricsPath, numThreads);
+        if (port >= 0) serve(port);
+
+        boolean changed = false;
+        long lastChange = 0;
+        long lastRefresh = System.currentTimeMillis();
+        List<CompletableFuture<Snapshot>> waiting = new ArrayList<>();
+        while (true) {
+            CompletableFuture<Snapshot> request = requests.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (request != null) {
+                waiting.add(request);
+                requests.drainTo(waiting);
+            }
+
+            WatchKey key;
+            while ((key = watcher.poll()) != null) {
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    changed |= onEvent(dir, event);
+                    lastChange = System.currentTimeMillis();
+                }
+                if (!key.reset()) watched.remove(dir);
+            }
+
+            long now = System.currentTimeMillis();
+            boolean due = changed && now - lastChange >= SETTLE_MILLIS && now - lastRefresh >= refreshMillis;
+            if (!due && waiting.isEmpty()) continue;
+
+            state = refresh(state, metricsPath, numThreads);
+            changed = false;
+            lastRefresh = System.currentTimeMillis();
+            for (CompletableFuture<Snapshot> w : waiting) w.complete(snapshot);
+            waiting.clear();
+        }
+    }
+
+    /**
+     * @param dir
+     * @param event
+     * @return whether the event can change the results
+     * @throws IOException
+     */
+    private boolean onEvent(Path dir, WatchEvent<?> event) throws IOException {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            readList();
+            return true;
+        }
+        Path file = dir.resolve((Path) event.context()).normalize();
+        if (file.equals(articlesPath)) {
+            readList();
+            return true;
+        }
+        if (!file.getFileName().toString().endsWith(".json")) return false;
+        String path = file.toString();
+        if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) discovered.remove(path);
+        else if (!listedFiles.contains(file)) discovered.add(path);
+        return true;
+    }
+
+    /**
+     * Reads the article list again and watches the directories of the files it lists.
+     * A list that can't be read, e.g. one that is being written, keeps the previous one.
+     * @throws IOException
+     */
+    private void readList() throws IOException {
+        watch(articlesPath.getParent());
+        if (!Files.isRegularFile(articlesPath)) return;
+        try {
+            listed = DataLoader.readPaths(articlesPath.toString());
+        } catch (RuntimeException e) {
+            System.err.println("Daemon Error: could not read " + articlesPath + ": " + e.getMessage());
+            return;
+        }
+        listedFiles.clear();
+        for (String path : listed) {
+            Path file = Path.of(path).toAbsolutePath().normalize();
+            listedFiles.add(file);
+            discovered.remove(file.toString());
+            Path parent = file.getParent();
+            if (parent != null && Files.isDirectory(parent)) watch(parent);
+        }
+    }
+
+    private void watch(Path dir) throws IOException {
+        if (watched.add(dir)) {
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        }
+    }
+
+    /**
+     * Runs the pipeline over the listed and discovered files, writes every output and publishes the results.
+     * @param state state of the previous refresh, or null
+     * @param metricsPath
+     * @param numThreads
+     * @return the state of this refresh
+     */
+    private IncrementalState refresh(IncrementalState state, Path metricsPath, int numThreads) {
+        List<String> paths = new ArrayList<>(Arrays.asList(listed));
+        paths.addAll(discovered);
+
+        long start = System.nanoTime();
+        IncrementalState next = Tema1.aggregate(paths.toArray(new String[0]), state);
+        Snapshot previous = snapshot;
+        snapshot = new Snapshot(Collections.unmodifiableMap(Tema1.categoryToUuids),
+                Collections.unmodifiableMap(Tema1.languageToUuids), Tema1.keywordRanking, Tema1.report);
+        if (previous != null) removeStale(previous, snapshot);
+        Metrics.finish(metricsPath, numThreads);
+        System.err.println("Daemon: refreshed " + paths.size() + " files in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return next;
+    }
+
+    /**
+     * Deletes the uuid files of the categories and languages that are gone since the previous refresh.
+     * @param previous
+     * @param current
+     */
+    private static void removeStale(Snapshot previous, Snapshot current) {
+        Set<String> stale = new HashSet<>(previous.categoryFiles.keySet());
+        stale.addAll(previous.languageFiles.keySet());
+        stale.removeAll(current.categoryFiles.keySet());
+        stale.removeAll(current.languageFiles.keySet());
+        for (String stem : stale) {
+            try {
+                Files.deleteIfExists(Path.of(stem + ".txt"));
+            } catch (IOException e) {
+                System.err.println("Daemon Error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Starts the query endpoint on the loopback address.
+     * @param port 0 for any free port
+     * @throws IOException
+     */
+    private static void serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/keywords", exchange -> {
+            Snapshot s = snapshot;
+            int top = s.keywords.size();
+            String query = exchange.getRequestURI().getQuery();
+            if (query != null && query.startsWith("top=")) {
+                try {
+                    top = Math.min(top, Integer.parseInt(query.substring("top=".length())));
+                } catch (NumberFormatException e) {
+                    respond(exchange, 400, "top must be a number\n");
+                    return;
+                }
+            }
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < top; i++) sb.append(s.keywords.word(i)).append(' ').append(s.keywords.count(i)).append('\n');
+            respond(exchange, 200, sb.toString());
+        });
+        server.createContext("/categories/", exchange -> {
+            Snapshot s = snapshot;
+            respondUuids(exchange, s.categories, s.categoryFiles, "/categories/");
+        });
+        server.createContext("/languages/", exchange -> {
+            Snapshot s = snapshot;
+            respondUuids(exchange, s.languages, s.languageFiles, "/languages/");
+        });
+        server.createContext("/report", exchange -> respond(exchange, 200, snapshot.report));
+        server.createContext("/refresh", exchange -> {
+            CompletableFuture<Snapshot> done = new CompletableFuture<>();
+            requests.add(done);
+            try {
+                respond(exchange, 200, done.get().report);
+            } catch (InterruptedException | ExecutionException e) {
+                respond(exchange, 500, "refresh failed\n");
+            }
+        });
+        // a few threads, so queries are answered while a /refresh waits
+        server.setExecutor(Executors.newFixedThreadPool(4, r -> {
+            Thread t = new Thread(r, "http");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+        System.err.println("Daemon: serving on http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort());
+    }
+
+    /**
+     * Answers with the uuid list of the key named by the rest of the path.
+     * @param exchange
+     * @param lists uuid lists by key
+     * @param files keys by output file name
+     * @param prefix
+     * @throws IOException
+     */
+    private static void respondUuids(HttpExchange exchange, Map<String, UuidPostings> lists,
+                                     Map<String, String> files, String prefix) throws IOException {
+        String name = exchange.getRequestURI().getPath().substring(prefix.length());
+        UuidPostings uuids = lists.get(name);
+        if (uuids == null && files.containsKey(name)) uuids = lists.get(files.get(name));
+        if (uuids == null) {
+            respond(exchange, 404, "unknown: " + name + "\n");
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        UuidPostings.Cursor cursor = uuids.cursor();
+        while (cursor.next()) {
+            cursor.appendTo(sb);
+            sb.append('\n');
+        }
+        respond(exchange, 200, sb.toString());
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
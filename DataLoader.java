@@ -1,15 +1,40 @@
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonToken;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public class DataLoader {
 
+    // Files at least this large are memory-mapped, smaller ones are read into a reused buffer
+    static final long MAP_THRESHOLD = 1 << 20;
+    // Size of a single mapped window, large files are mapped window by window
+    static final long MAP_WINDOW_SIZE = 1L << 28;
+
+    // Buffers of files read ahead, handed back once the file is parsed
+    private static final ConcurrentLinkedQueue<byte[]> BUFFERS = new ConcurrentLinkedQueue<>();
+
     /**
      * Reads article paths from a specified file.
      * @param articlesPath
@@ -40,48 +65,377 @@ public class DataLoader {
     }
 
     /**
-     * Reads article files dynamically from a queue.
-     * @param objectMapper
+     * Reads article files dynamically from a queue into a new part of the given store.
+     * @param factory
+     * @param articleParser
      * @param fileQueue
+     * @param store
      * @return
      */
-    public static List<Article> readFilesDynamic(ObjectMapper objectMapper, Queue<String> fileQueue) {
-        List<Article> localArticles = new ArrayList<>();
+    public static ArticleStore readFilesDynamic(JsonFactory factory, ArticleParser articleParser,
+                                                Queue<String> fileQueue, ArticleStore store) {
+        ArticleStore localArticles = store.newPart();
+        ArticleFileReader reader = new ArticleFileReader(factory, articleParser);
         String filePath;
 
         while ((filePath = fileQueue.poll()) != null) {
             try {
-                Path path = Path.of(filePath);
-                String jsonContent = Files.readString(path);
-                JsonParser parser = objectMapper.getFactory().createParser(jsonContent);
+                reader.read(filePath, localArticles::add);
+            } catch (Exception e) {
+                System.err.println("Error reading file " + filePath + ": " + e.getMessage());
+            }
+        }
+        return localArticles;
+    }
+
+    /**
+     * Per-thread reader of article files.
+     * The raw bytes are handed to Jackson's byte-level parser, so files are never decoded into Strings.
+     * With a cache directory, files parsed before are read from the binary cache instead.
+     */
+    public static class ArticleFileReader {
+        private final JsonFactory factory;
+        private final ArticleParser articleParser;
+        private final ArticleCache cache;
+        private final Article art = new Article();
+        private byte[] buffer = new byte[64 * 1024];
+
+        public ArticleFileReader(JsonFactory factory, ArticleParser articleParser) {
+            this(factory, articleParser, null);
+        }
 
+        /**
+         * @param factory
+         * @param articleParser
+         * @param cacheDirectory directory of the parsed-article cache, or null for no cache
+         */
+        public ArticleFileReader(JsonFactory factory, ArticleParser articleParser, Path cacheDirectory) {
+            this.factory = factory;
+            this.articleParser = articleParser;
+            this.cache = cacheDirectory != null ? new ArticleCache(cacheDirectory, articleParser) : null;
+        }
+
+        /**
+         * Parses every article object of the file and hands it to sink.
+         * The Article instance is reused, sink must copy what it needs.
+         * @param filePath
+         * @param sink
+         * @throws IOException
+         */
+        public void read(String filePath, Consumer<Article> sink) throws IOException {
+            try (FileChannel channel = FileChannel.open(Path.of(filePath), StandardOpenOption.READ)) {
+                long size = channel.size();
+                ArticleCache.Writer writer = null;
+                if (cache != null) {
+                    long modified = Files.getLastModifiedTime(Path.of(filePath)).toMillis();
+                    if (cache.read(filePath, size, modified, art, sink)) return;
+                    writer = cache.writer(filePath, size, modified);
+                }
+                Metrics.bytesRead(size);
+
+                JsonParser parser;
+                if (size >= MAP_THRESHOLD) {
+                    parser = factory.createParser(new MappedFileInputStream(channel, size));
+                } else {
+                    if (buffer.length < size) {
+                        buffer = new byte[(int) Math.max(size, 2L * buffer.length)];
+                    }
+                    int length = readFully(channel, buffer, (int) size);
+                    parser = factory.createParser(buffer, 0, length);
+                }
+                parse(parser, writer, sink);
+            }
+        }
+
+        /**
+         * Parses a file that was read ahead, from its bytes or its cache file.
+         * Files too large to be read ahead are read here.
+         * @param content
+         * @param sink
+         * @throws IOException
+         */
+        public void read(FileContent content, Consumer<Article> sink) throws IOException {
+            if (content.cached != null && cache != null) {
+                cache.decode(content.cached, art, sink);
+                return;
+            }
+            if (content.bytes == null) {
+                read(content.path, sink);
+                return;
+            }
+            ArticleCache.Writer writer = cache != null ? cache.writer(content.path, content.size, content.modified) : null;
+            parse(factory.createParser(content.bytes, 0, content.length), writer, sink);
+        }
+
+        private void parse(JsonParser parser, ArticleCache.Writer writer, Consumer<Article> sink) throws IOException {
+            try (parser) {
                 while (parser.nextToken() != null) {
-                    if (parser.getCurrentToken() == com.fasterxml.jackson.core.JsonToken.START_OBJECT) {
-                        Article art = objectMapper.readValue(parser, Article.class);
-                        localArticles.add(art);
+                    if (parser.currentToken() == JsonToken.START_OBJECT) {
+                        articleParser.parse(parser, art);
+                        if (writer != null) writer.write(art);
+                        sink.accept(art);
                     }
                 }
-                parser.close();
-            } catch (Exception e) {
-                System.err.println("Error reading file " + filePath + ": " + e.getMessage());
+                if (writer != null) writer.commit();
+            } catch (IOException | RuntimeException e) {
+                if (writer != null) writer.abort();
+                throw e;
             }
         }
-        return localArticles;
     }
 
     /**
-     * Reads chunked inputs for languages, categories, or English linking words.
+     * An article file read ahead: its bytes, or its mapped and loaded cache file.
+     * Files of at least MAP_THRESHOLD bytes are not read ahead, both are null then.
+     */
+    public static class FileContent {
+        final String path;
+        final long size;
+        final long modified;
+        final byte[] bytes;
+        final int length;
+        final MappedByteBuffer cached;
+
+        FileContent(String path, long size, long modified, byte[] bytes, int length, MappedByteBuffer cached) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.bytes = bytes;
+            this.length = length;
+            this.cached = cached;
+        }
+
+        /**
+         * Hands the buffer back for the next file, once the file is parsed.
+         */
+        public void release() {
+            if (bytes != null) BUFFERS.offer(bytes);
+        }
+    }
+
+    /**
+     * Reads a file, or its cache file when cache is not null and has it, into memory.
+     * @param filePath
+     * @param cache
+     * @return
+     * @throws IOException
+     */
+    public static FileContent load(String filePath, ArticleCache cache) throws IOException {
+        Path path = Path.of(filePath);
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        if (cache != null) {
+            MappedByteBuffer cached = cache.load(filePath, size, modified);
+            if (cached != null) return new FileContent(filePath, size, modified, null, 0, cached.load());
+        }
+        if (size >= MAP_THRESHOLD) return new FileContent(filePath, size, modified, null, 0, null);
+
+        byte[] bytes = BUFFERS.poll();
+        if (bytes == null || bytes.length < size) bytes = new byte[(int) Math.max(size, 64 * 1024)];
+        int length;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            length = readFully(channel, bytes, (int) size);
+        }
+        Metrics.bytesRead(length);
+        return new FileContent(filePath, size, modified, bytes, length, null);
+    }
+
+    /**
+     * Reads article files ahead on the I/O executor, so the parsing threads find them in memory
+     * instead of waiting on storage. At most 2 * depth files are being read or waiting to be parsed.
+     */
+    public static class Prefetcher {
+        private final Queue<String> fileQueue;
+        private final Path cacheDirectory;
+        private final ArticleParser articleParser;
+        private final int depth;
+        private final BlockingQueue<FileContent> ready;
+        private final AtomicInteger loaders = new AtomicInteger(0);
+
+        /**
+         * @param fileQueue
+         * @param cacheDirectory directory of the parsed-article cache, or null
+         * @param articleParser
+         * @param depth number of files read at once
+         */
+        public Prefetcher(Queue<String> fileQueue, Path cacheDirectory, ArticleParser articleParser, int depth) {
+            this.fileQueue = fileQueue;
+            this.cacheDirectory = cacheDirectory;
+            this.articleParser = articleParser;
+            this.depth = depth;
+            this.ready = new ArrayBlockingQueue<>(depth);
+        }
+
+        /**
+         * Starts the reading tasks.
+         * @param ioExecutor
+         */
+        public void start(ExecutorService ioExecutor) {
+            int numLoaders = Math.max(1, Math.min(depth, fileQueue.size()));
+            loaders.set(numLoaders);
+            for (int i = 0; i < numLoaders; i++) {
+                ioExecutor.submit(this::load);
+            }
+        }
+
+        private void load() {
+            ArticleCache cache = cacheDirectory != null ? new ArticleCache(cacheDirectory, articleParser) : null;
+            try {
+                String filePath;
+                while ((filePath = fileQueue.poll()) != null) {
+                    FileContent content;
+                    try {
+                        content = DataLoader.load(filePath, cache);
+                    } catch (IOException e) {
+                        System.err.println("Error reading file " + filePath + ": " + e.getMessage());
+                        continue;
+                    }
+                    Metrics.Stage stage = Metrics.enter(null);
+                    ready.put(content);
+                    Metrics.enter(stage);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                loaders.decrementAndGet();
+            }
+        }
+
+        /**
+         * @return a file that has been read, or null if none is ready yet
+         */
+        public FileContent poll() {
+            return ready.poll();
+        }
+
+        public FileContent poll(long timeout, TimeUnit unit) throws InterruptedException {
+            return ready.poll(timeout, unit);
+        }
+
+        /**
+         * @return true once every file has been read and handed out
+         */
+        public boolean isDone() {
+            return loaders.get() == 0 && ready.isEmpty();
+        }
+    }
+
+    /**
+     * Reads the whole channel into the given buffer.
+     * @param channel
+     * @param buffer
+     * @param size
+     * @return
+     * @throws IOException
+     */
+    private static int readFully(FileChannel channel, byte[] buffer, int size) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buffer, 0, size);
+        while (target.hasRemaining()) {
+            if (channel.read(target) < 0) break;
+        }
+        return target.position();
+    }
+
+    /**
+     * InputStream over a memory-mapped file, mapping one window at a time
+     * so files larger than 2GB can be streamed as well.
+     */
+    static class MappedFileInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long size;
+        private long windowStart;
+        private MappedByteBuffer window;
+
+        MappedFileInputStream(FileChannel channel, long size) throws IOException {
+            this.channel = channel;
+            this.size = size;
+            this.window = map(0);
+        }
+
+        private MappedByteBuffer map(long start) throws IOException {
+            windowStart = start;
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAP_WINDOW_SIZE, size - start));
+        }
+
+        private boolean ensureRemaining() throws IOException {
+            if (window.hasRemaining()) return true;
+            long next = windowStart + window.capacity();
+            if (next >= size) return false;
+            window = map(next);
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return ensureRemaining() ? window.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!ensureRemaining()) return -1;
+            int n = Math.min(len, window.remaining());
+            window.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return window.remaining();
+        }
+    }
+
+    /**
+     * Parses the texts of rows again from their source files.
+     * Only the files holding one of the rows are read.
+     * @param store
+     * @param rows
+     * @param files path of every source file id
+     * @param factory
+     * @param articleParser
+     * @param cacheDirectory directory of the parsed-article cache, or null
+     * @throws UncheckedIOException if a file can't be read, or no longer holds one of the rows
+     */
+    public static void reloadTexts(ArticleStore store, int[] rows, List<String> files, JsonFactory factory,
+                                   ArticleParser articleParser, Path cacheDirectory) {
+        Map<Integer, Map<Integer, Integer>> rowsByFile = new HashMap<>();
+        for (int row : rows) {
+            rowsByFile.computeIfAbsent(store.sourceFile(row), k -> new HashMap<>()).put(store.sourceOrdinal(row), row);
+        }
+
+        ArticleFileReader reader = new ArticleFileReader(factory, articleParser, cacheDirectory);
+        rowsByFile.forEach((file, ordinals) -> {
+            if (file == ArticleStore.NONE) return;
+            String path = files.get(file);
+            int[] ordinal = { 0 };
+            try {
+                reader.read(path, art -> {
+                    Integer row = ordinals.get(ordinal[0]++);
+                    if (row != null) store.setText(row, art.getText());
+                });
+                for (int o : ordinals.keySet()) {
+                    if (o >= ordinal[0]) throw new IOException("article " + o + " is gone");
+                }
+            } catch (IOException e) {
+                // the rows would keep no text, and the retraction would leave their keywords counted
+                throw new UncheckedIOException("Could not read file " + path + " again: " + e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * Reads the lines [from, to) of an input for languages, categories, or English linking words.
      * @param path
-     * @param id
-     * @param numThreads
+     * @param from
+     * @param to
      * @param lines
-     * @param N
      * @param lower
      * @param languages
      * @param categories
      * @param englishLinkingWords
      */
-    public static void readChunkInputs(String path, int id, int numThreads, List<String> lines, int N, String lower,
+    public static void readChunkInputs(String path, int from, int to, List<String> lines, String lower,
                                        String[] languages, String[] categories, Set<String> englishLinkingWords) {
         List<String> elems = lines.subList(1, lines.size());
 
@@ -91,11 +445,7 @@ public class DataLoader {
 
         if (!isLanguages && !isCategories && !isLinking) return;
 
-        int chunkSize = (int) Math.ceil((double) N / numThreads);
-        int start = id * chunkSize;
-        int end = Math.min(start + chunkSize, N);
-
-        for (int i = start; i < end; i++) {
+        for (int i = from; i < to; i++) {
             String val = elems.get(i);
             if (isLanguages) {
                 languages[i] = val;
@@ -106,4 +456,4 @@ public class DataLoader {
             }
         }
     }
-}
\ No newline at end of file
+}
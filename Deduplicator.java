@@ -0,0 +1,424 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Finds the articles whose uuid and title both occur exactly once.
+ * Every copy of a repeated uuid or title is dropped.
+ *
+ * Pass 1: the rows are fingerprinted (uuid from its two longs, title hashed to 64 bits) by
+ * work-stealing range tasks (Parallel.forRange), every task dropping its rows into its own buckets
+ * by partition.
+ * Pass 2: partition p is owned by a single task, which counts it in a private open-addressing
+ * table (fingerprints are verified against the exact uuid/title on collision) and marks duplicates.
+ * There are several partitions per worker so a slow partition does not hold up the others.
+ * No structure is shared between tasks except disjoint slots of the result arrays.
+ *
+ * Over the memory budget, pass 1 appends (fingerprint, row) pairs to one spill file per partition
+ * instead, with enough partitions for those being counted at once to fit, and pass 2 reads them
+ * back one partition per task.
+ */
+public class Deduplicator {
+    // partitions per worker in pass 2
+    static final int PARTITIONS_PER_THREAD = 4;
+
+    private static final Parallel.Grain FINGERPRINT_GRAIN = new Parallel.Grain();
+    private static final Parallel.Grain FILTER_GRAIN = new Parallel.Grain();
+
+    /**
+     * Returns the rows of the unique articles, in row order.
+     * @param store
+     * @param pool
+     * @return
+     */
+    public static int[] uniqueRows(ArticleStore store, ForkJoinPool pool) {
+        return filterRows(findDuplicates(store, pool), false, pool);
+    }
+
+    /**
+     * Marks every row whose uuid or title occurs more than once, spilling the keys to partition
+     * files if they do not fit in the budget.
+     * @param store
+     * @param pool
+     * @param budget null to stay in memory
+     * @return duplicate[row] is true for every copy of a repeated uuid or title
+     * @throws UncheckedIOException if spilled keys can't be written or read back
+     */
+    public static boolean[] findDuplicates(ArticleStore store, ForkJoinPool pool, MemoryBudget budget) {
+        long needed = (long) store.size() * MemoryBudget.DEDUP_BYTES_PER_ROW;
+        if (budget == null || !budget.exceeded(needed)) return findDuplicates(store, pool);
+
+        int total = store.size();
+        int parallelism = pool.getParallelism();
+        // the partitions counted at once have to fit in the budget
+        int numPartitions = (int) Math.max(PARTITIONS_PER_THREAD * parallelism,
+                Math.min(1 << 12, needed * parallelism / budget.bytes + 1));
+        boolean[] duplicate = new boolean[total];
+        Path[] uuidFiles = new Path[numPartitions];
+        Path[] titleFiles = new Path[numPartitions];
+        DataOutputStream[] uuidOut = new DataOutputStream[numPartitions];
+        DataOutputStream[] titleOut = new DataOutputStream[numPartitions];
+        try {
+            for (int p = 0; p < numPartitions; p++) {
+                uuidFiles[p] = budget.newFile("uuids");
+                titleFiles[p] = budget.newFile("titles");
+                uuidOut[p] = MemoryBudget.create(uuidFiles[p]);
+                titleOut[p] = MemoryBudget.create(titleFiles[p]);
+            }
+
+            // Pass 1: fingerprint and spill by partition
+            Parallel.forRange(pool, FINGERPRINT_GRAIN, total, (start, end) -> {
+                long[] uuidFps = new long[end - start];
+                long[] titleFps = new long[end - start];
+                int expected = Math.max(16, (end - start) / numPartitions);
+                IntList[] uuids = newBuckets(numPartitions, expected);
+                IntList[] titles = newBuckets(numPartitions, expected);
+                for (int row = start; row < end; row++) {
+                    uuidFps[row - start] = uuidFingerprint(store, row);
+                    titleFps[row - start] = titleFingerprint(store.title(row));
+                    uuids[partitionOf(uuidFps[row - start], numPartitions)].add(row);
+                    titles[partitionOf(titleFps[row - start], numPartitions)].add(row);
+                }
+                try {
+                    for (int p = 0; p < numPartitions; p++) {
+                        spill(uuidOut[p], uuids[p], uuidFps, start);
+                        spill(titleOut[p], titles[p], titleFps, start);
+                    }
+                } catch (IOException e) {
+                    // the fingerprints would never be compared, so their duplicates would go unmarked
+                    throw new UncheckedIOException("Could not spill fingerprints: " + e.getMessage(), e);
+                }
+            });
+        } catch (IOException e) {
+            // nothing was spilled yet, the rows are counted in memory instead
+            System.err.println("Dedup Error: " + e.getMessage());
+            return findDuplicates(store, pool);
+        }
+        try {
+            for (int p = 0; p < numPartitions; p++) {
+                uuidOut[p].close();
+                titleOut[p].close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not spill fingerprints: " + e.getMessage(), e);
+        }
+
+        // Pass 2: each partition is read back and counted by its owner
+        Metrics.Stage stage = Metrics.current();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int p = 0; p < numPartitions; p++) {
+            final int partition = p;
+            tasks.add(ForkJoinTask.adapt(() -> {
+                Metrics.Stage previous = Metrics.enter(stage);
+                try {
+                    markSpilled(store, uuidFiles[partition], false, duplicate);
+                    markSpilled(store, titleFiles[partition], true, duplicate);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Could not read spilled fingerprints: " + e.getMessage(), e);
+                } finally {
+                    Metrics.enter(previous);
+                }
+            }));
+        }
+        pool.invoke(ForkJoinTask.adapt(() -> {
+            ForkJoinTask.invokeAll(tasks);
+        }));
+        return duplicate;
+    }
+
+    /**
+     * Marks every row whose uuid or title occurs more than once.
+     * @param store
+     * @param pool
+     * @return duplicate[row] is true for every copy of a repeated uuid or title
+     */
+    public static boolean[] findDuplicates(ArticleStore store, ForkJoinPool pool) {
+        int total = store.size();
+        int numPartitions = PARTITIONS_PER_THREAD * pool.getParallelism();
+        long[] uuidFingerprints = new long[total];
+        long[] titleFingerprints = new long[total];
+        boolean[] duplicate = new boolean[total];
+
+        // Pass 1: fingerprint and partition
+        ConcurrentLinkedQueue<IntList[]> uuidBuckets = new ConcurrentLinkedQueue<>();
+        ConcurrentLinkedQueue<IntList[]> titleBuckets = new ConcurrentLinkedQueue<>();
+        Parallel.forRange(pool, FINGERPRINT_GRAIN, total, (start, end) -> {
+            int expected = Math.max(16, (end - start) / numPartitions);
+            IntList[] uuids = newBuckets(numPartitions, expected);
+            IntList[] titles = newBuckets(numPartitions, expected);
+            for (int row = start; row < end; row++) {
+                long uuidFp = uuidFingerprint(store, row);
+                long titleFp = titleFingerprint(store.title(row));
+                uuidFingerprints[row] = uuidFp;
+                titleFingerprints[row] = titleFp;
+                uuids[partitionOf(uuidFp, numPartitions)].add(row);
+                titles[partitionOf(titleFp, numPartitions)].add(row);
+            }
+            uuidBuckets.add(uuids);
+            titleBuckets.add(titles);
+        });
+
+        // Pass 2: each partition is counted by its owner
+        List<IntList[]> uuidList = new ArrayList<>(uuidBuckets);
+        List<IntList[]> titleList = new ArrayList<>(titleBuckets);
+        Metrics.Stage stage = Metrics.current();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int p = 0; p < numPartitions; p++) {
+            final int partition = p;
+            tasks.add(ForkJoinTask.adapt(() -> {
+                Metrics.Stage previous = Metrics.enter(stage);
+                markDuplicates(store, uuidList, partition, uuidFingerprints, false, duplicate);
+                markDuplicates(store, titleList, partition, titleFingerprints, true, duplicate);
+                Metrics.enter(previous);
+            }));
+        }
+        pool.invoke(ForkJoinTask.adapt(() -> {
+            ForkJoinTask.invokeAll(tasks);
+        }));
+        return duplicate;
+    }
+
+    /**
+     * Collects, in row order, the rows whose flag equals value.
+     * @param flags
+     * @param value
+     * @param pool
+     * @return
+     */
+    public static int[] filterRows(boolean[] flags, boolean value, ForkJoinPool pool) {
+        int total = flags.length;
+        // pieces of the result are put back in row order at the end
+        ConcurrentLinkedQueue<Piece> pieces = new ConcurrentLinkedQueue<>();
+        Parallel.forRange(pool, FILTER_GRAIN, total, (start, end) -> {
+            IntList localRows = new IntList(Math.max(16, end - start));
+            for (int row = start; row < end; row++) {
+                if (flags[row] == value) localRows.add(row);
+            }
+            pieces.add(new Piece(start, localRows));
+        });
+
+        List<Piece> ordered = new ArrayList<>(pieces);
+        ordered.sort(Comparator.comparingInt(piece -> piece.start));
+        IntList rows = new IntList(total);
+        for (Piece piece : ordered) rows.addAll(piece.rows);
+        return rows.toArray();
+    }
+
+    /**
+     * Appends the (fingerprint, row) pairs of rows to a partition file.
+     * @param out
+     * @param rows
+     * @param fingerprints fingerprints of the rows from start on
+     * @param start
+     * @throws IOException
+     */
+    private static void spill(DataOutputStream out, IntList rows, long[] fingerprints, int start) throws IOException {
+        if (rows.isEmpty()) return;
+        synchronized (out) {
+            for (int i = 0; i < rows.size(); i++) {
+                int row = rows.get(i);
+                out.writeLong(fingerprints[row - start]);
+                out.writeInt(row);
+            }
+        }
+        Metrics.bytesWritten(12L * rows.size());
+    }
+
+    /**
+     * Counts the keys of one partition file and marks every row of a repeated key, then deletes it.
+     * @param store
+     * @param file
+     * @param titles
+     * @param duplicate
+     * @throws IOException
+     */
+    private static void markSpilled(ArticleStore store, Path file, boolean titles, boolean[] duplicate) throws IOException {
+        int size = (int) (Files.size(file) / 12);
+        int[] rows = new int[size];
+        int[] keyOfRow = new int[size];
+        KeyCounter counter = new KeyCounter(store, titles, size);
+        try (DataInputStream in = MemoryBudget.open(file)) {
+            for (int i = 0; i < size; i++) {
+                long fp = in.readLong();
+                rows[i] = in.readInt();
+                keyOfRow[i] = counter.increment(rows[i], fp);
+            }
+        }
+        Metrics.bytesRead(12L * size);
+        Files.delete(file);
+
+        for (int i = 0; i < size; i++) {
+            if (counter.count(keyOfRow[i]) > 1) duplicate[rows[i]] = true;
+        }
+    }
+
+    /**
+     * Counts the keys of one partition and marks every row whose key occurs more than once.
+     * @param store
+     * @param buckets
+     * @param partition
+     * @param fingerprints
+     * @param titles true to compare titles, false to compare uuids
+     * @param duplicate
+     */
+    private static void markDuplicates(ArticleStore store, List<IntList[]> buckets, int partition,
+                                       long[] fingerprints, boolean titles, boolean[] duplicate) {
+        int size = 0;
+        for (IntList[] taskBuckets : buckets) size += taskBuckets[partition].size();
+
+        KeyCounter counter = new KeyCounter(store, titles, size);
+        int[] keyOfRow = new int[size];
+        int k = 0;
+        for (IntList[] taskBuckets : buckets) {
+            IntList rows = taskBuckets[partition];
+            for (int i = 0; i < rows.size(); i++) {
+                int row = rows.get(i);
+                keyOfRow[k++] = counter.increment(row, fingerprints[row]);
+            }
+        }
+
+        k = 0;
+        for (IntList[] taskBuckets : buckets) {
+            IntList rows = taskBuckets[partition];
+            for (int i = 0; i < rows.size(); i++) {
+                if (counter.count(keyOfRow[k++]) > 1) duplicate[rows.get(i)] = true;
+            }
+        }
+    }
+
+    private static IntList[] newBuckets(int numPartitions, int expected) {
+        IntList[] buckets = new IntList[numPartitions];
+        for (int p = 0; p < numPartitions; p++) buckets[p] = new IntList(expected);
+        return buckets;
+    }
+
+    /**
+     * Partition from the high bits of a fingerprint, the low bits are left for the table slots.
+     * @param fingerprint
+     * @param numPartitions
+     * @return
+     */
+    private static int partitionOf(long fingerprint, int numPartitions) {
+        return (int) (((fingerprint >>> 32) * numPartitions) >>> 32);
+    }
+
+    private static long uuidFingerprint(ArticleStore store, int row) {
+        if (store.hasBinaryUuid(row)) {
+            return mix(store.uuidHi(row) ^ mix(store.uuidLo(row)));
+        }
+        return titleFingerprint(store.uuid(row)) ^ 0x5DEECE66DL;
+    }
+
+    private static long titleFingerprint(String title) {
+        if (title == null) title = "";
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0, n = title.length(); i < n; i++) {
+            h = (h ^ title.charAt(i)) * 0x100000001B3L;
+        }
+        return mix(h ^ title.length());
+    }
+
+    /**
+     * 64-bit finalizer from MurmurHash3.
+     * @param h
+     * @return
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Open-addressing counter keyed by fingerprint, with the first row of each key kept
+     * to verify equality when two different keys share a fingerprint.
+     */
+    private static class KeyCounter {
+        private final ArticleStore store;
+        private final boolean titles;
+        private final int[] slots;
+        private final int mask;
+        private final long[] keyFingerprints;
+        private final int[] firstRow;
+        private final int[] counts;
+        private int size;
+
+        KeyCounter(ArticleStore store, boolean titles, int expectedSize) {
+            this.store = store;
+            this.titles = titles;
+            int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+            slots = new int[capacity];
+            mask = capacity - 1;
+            keyFingerprints = new long[Math.max(expectedSize, 1)];
+            firstRow = new int[Math.max(expectedSize, 1)];
+            counts = new int[Math.max(expectedSize, 1)];
+        }
+
+        /**
+         * Counts one more occurrence of the row's key.
+         * @param row
+         * @param fp fingerprint of the row's key
+         * @return the key id
+         */
+        int increment(int row, long fp) {
+            int idx = (int) fp & mask;
+            int slot;
+            while ((slot = slots[idx]) != 0) {
+                int key = slot - 1;
+                if (keyFingerprints[key] == fp && sameKey(row, firstRow[key])) {
+                    counts[key]++;
+                    return key;
+                }
+                idx = (idx + 1) & mask;
+            }
+            int key = size++;
+            keyFingerprints[key] = fp;
+            firstRow[key] = row;
+            counts[key] = 1;
+            slots[idx] = key + 1;
+            return key;
+        }
+
+        int count(int key) {
+            return counts[key];
+        }
+
+        private boolean sameKey(int a, int b) {
+            if (titles) {
+                String ta = store.title(a);
+                String tb = store.title(b);
+                return (ta == null ? "" : ta).equals(tb == null ? "" : tb);
+            }
+            if (store.hasBinaryUuid(a) != store.hasBinaryUuid(b)) return false;
+            if (store.hasBinaryUuid(a)) {
+                return store.uuidHi(a) == store.uuidHi(b) && store.uuidLo(a) == store.uuidLo(b);
+            }
+            return store.uuid(a).equals(store.uuid(b));
+        }
+    }
+
+    /**
+     * Rows found by one range task, starting at row start.
+     */
+    private static class Piece {
+        final int start;
+        final IntList rows;
+
+        Piece(int start, IntList rows) {
+            this.start = start;
+            this.rows = rows;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+import com.fasterxml.jackson.core.JsonFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * State kept between runs for incremental ingestion.
+ *
+ * Holds every article read so far without its text (the dedup keys are its uuid and title),
+ * the files they were read from, the unique rows in output order and the keyword counts of the
+ * unique articles. Category, language and author aggregates are rebuilt from the rows, keyword
+ * counts need the texts and are saved as counts instead.
+ *
+ * A state is only reused when every file it has read is still listed and unchanged (same size and
+ * modification time) and the stop words are the same, otherwise the run starts from scratch.
+ * The daemon keeps the state of its last refresh in memory (see of and reuse) instead of a file.
+ */
+public class IncrementalState {
+    private static final int MAGIC = 0x4E414753;
+    private static final int VERSION = 1;
+
+    // path of every file read so far, the index is the file id stored in the rows
+    final List<String> files;
+    final ArticleStore store;
+    // unique rows sorted by published date and uuid
+    final int[] sortedRows;
+    // keyword counts over the unique rows
+    final KeywordTable keywords;
+    // for states kept in memory: stop words signature, size and modification time of every file
+    private long stopWordsSignature;
+    private long[] sizes;
+    private long[] modified;
+
+    private IncrementalState(List<String> files, ArticleStore store, int[] sortedRows, KeywordTable keywords) {
+        this.files = files;
+        this.store = store;
+        this.sortedRows = sortedRows;
+        this.keywords = keywords;
+    }
+
+    /**
+     * State of the run that just ended, kept in memory. The texts of the store are dropped.
+     * @param stopWords
+     * @param files path of every file read, indexed by file id
+     * @param store every article read, duplicates included
+     * @param sortedRows
+     * @param keywordShards keyword counts of the unique rows
+     * @return
+     */
+    public static IncrementalState of(Set<String> stopWords, List<String> files, ArticleStore store,
+                                      int[] sortedRows, KeywordTable[] keywordShards) {
+        store.dropTexts();
+        IncrementalState state = new IncrementalState(new ArrayList<>(files), store, sortedRows, merge(keywordShards));
+        state.stopWordsSignature = signature(stopWords);
+        state.sizes = new long[files.size()];
+        state.modified = new long[files.size()];
+        for (int i = 0; i < files.size(); i++) {
+            try {
+                Path p = Path.of(files.get(i));
+                state.sizes[i] = Files.size(p);
+                state.modified[i] = Files.getLastModifiedTime(p).toMillis();
+            } catch (IOException e) {
+                state.sizes[i] = -1;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Checks a state kept in memory the way load checks a saved one.
+     * @param stopWords
+     * @param pathToArticles the files listed for this run
+     * @return this state, or null if it can't be reused
+     */
+    public IncrementalState reuse(Set<String> stopWords, String[] pathToArticles) {
+        if (stopWordsSignature != signature(stopWords)) {
+            System.err.println("State: stop words changed, starting from scratch");
+            return null;
+        }
+        Map<String, Integer> listed = new HashMap<>();
+        for (String path : pathToArticles) listed.merge(path, 1, Integer::sum);
+        for (int i = 0; i < files.size(); i++) {
+            String path = files.get(i);
+            if (listed.merge(path, -1, Integer::sum) < 0 || sizes[i] < 0 || !unchanged(path, sizes[i], modified[i])) {
+                System.err.println("State: " + path + " was removed or changed, starting from scratch");
+                return null;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * State of a run that has read nothing yet.
+     * @return
+     */
+    public static IncrementalState empty() {
+        return new IncrementalState(new ArrayList<>(), new ArticleStore(), new int[0], new KeywordTable());
+    }
+
+    /**
+     * Loads the state saved by a previous run, or returns null if there is none or it can't be reused.
+     * @param statePath
+     * @param stopWords
+     * @param pathToArticles the files listed for this run
+     * @return
+     */
+    public static IncrementalState load(String statePath, Set<String> stopWords, String[] pathToArticles) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Path.of(statePath))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                System.err.println("State Error: " + statePath + " is not a state file, starting from scratch");
+                return null;
+            }
+            if (in.readLong() != signature(stopWords)) {
+                System.err.println("State: stop words changed, starting from scratch");
+                return null;
+            }
+
+            Map<String, Integer> listed = new HashMap<>();
+            for (String path : pathToArticles) listed.merge(path, 1, Integer::sum);
+
+            int numFiles = in.readInt();
+            List<String> files = new ArrayList<>(numFiles);
+            for (int i = 0; i < numFiles; i++) {
+                String path = ArticleStore.readString(in);
+                long size = in.readLong();
+                long modified = in.readLong();
+                if (listed.merge(path, -1, Integer::sum) < 0 || !unchanged(path, size, modified)) {
+                    System.err.println("State: " + path + " was removed or changed, starting from scratch");
+                    return null;
+                }
+                files.add(path);
+            }
+
+            ArticleStore store = ArticleStore.readFrom(in);
+            int[] sortedRows = new int[in.readInt()];
+            for (int i = 0; i < sortedRows.length; i++) sortedRows[i] = in.readInt();
+            KeywordTable keywords = new KeywordTable();
+            keywords.readFrom(in);
+            return new IncrementalState(files, store, sortedRows, keywords);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.err.println("State Error: " + e.getMessage() + ", starting from scratch");
+            return null;
+        }
+    }
+
+    /**
+     * Saves the state of this run, through a temporary file so a crash never leaves a partial state.
+     * @param statePath
+     * @param stopWords
+     * @param files path of every file read, indexed by file id
+     * @param store every article read, duplicates included
+     * @param sortedRows
+     * @param keywordShards keyword counts of the unique rows
+     */
+    public static void save(String statePath, Set<String> stopWords, List<String> files, ArticleStore store,
+                            int[] sortedRows, KeywordTable[] keywordShards) {
+        Path target = Path.of(statePath);
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(signature(stopWords));
+
+                out.writeInt(files.size());
+                for (String path : files) {
+                    Path p = Path.of(path);
+                    ArticleStore.writeString(out, path);
+                    out.writeLong(Files.size(p));
+                    out.writeLong(Files.getLastModifiedTime(p).toMillis());
+                }
+
+                store.writeTo(out);
+                out.writeInt(sortedRows.length);
+                for (int row : sortedRows) out.writeInt(row);
+
+                merge(keywordShards).writeTo(out);
+            }
+            Metrics.bytesWritten(Files.size(tmp));
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("State Error: " + e.getMessage());
+        }
+    }
+
+    private static KeywordTable merge(KeywordTable[] keywordShards) {
+        KeywordTable keywords = new KeywordTable();
+        for (KeywordTable shard : keywordShards) {
+            for (int id = 0; id < shard.size(); id++) keywords.mergeFrom(shard, id);
+        }
+        return keywords;
+    }
+
+    /**
+     * Previously unique rows that the new articles turned into duplicates.
+     * @param duplicate
+     * @return
+     */
+    public int[] staleRows(boolean[] duplicate) {
+        IntList stale = new IntList();
+        for (int row : sortedRows) {
+            if (duplicate[row]) stale.add(row);
+        }
+        return stale.toArray();
+    }
+
+    /**
+     * Previously unique rows that are still unique, in output order.
+     * @param duplicate
+     * @return
+     */
+    public int[] survivingRows(boolean[] duplicate) {
+        IntList rows = new IntList(sortedRows.length);
+        for (int row : sortedRows) {
+            if (!duplicate[row]) rows.add(row);
+        }
+        return rows.toArray();
+    }
+
+    /**
+     * Parses the texts of old rows again from their files, so their keywords can be retracted.
+     * Only the files holding one of the rows are read.
+     * @param store
+     * @param rows
+     * @param factory
+     * @param articleParser
+     * @param cacheDirectory directory of the parsed-article cache, or null
+     */
+    public void reloadTexts(ArticleStore store, int[] rows, JsonFactory factory, ArticleParser articleParser,
+                            Path cacheDirectory) {
+        DataLoader.reloadTexts(store, rows, files, factory, articleParser, cacheDirectory);
+    }
+
+    private static boolean unchanged(String path, long size, long modified) {
+        try {
+            Path p = Path.of(path);
+            return Files.size(p) == size && Files.getLastModifiedTime(p).toMillis() == modified;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Hash of the sorted stop words, keyword counts from a state are only valid for the same set.
+     * @param stopWords
+     * @return
+     */
+    private static long signature(Set<String> stopWords) {
+        long h = 0xCBF29CE484222325L;
+        for (String word : new TreeSet<>(stopWords)) {
+            for (int i = 0; i < word.length(); i++) h = (h ^ word.charAt(i)) * 0x100000001B3L;
+            h = (h ^ '\n') * 0x100000001B3L;
+        }
+        return h;
+    }
+}
@@ -0,0 +1,110 @@
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor for blocking file reads and writes, kept apart from the core-sized pool that parses
+ * and aggregates so a thread waiting on storage never holds a CPU slot.
+ *
+ * On a runtime with virtual threads every task gets its own virtual thread and a semaphore caps
+ * how many run at once. Virtual threads are looked up by reflection so the code still builds and
+ * runs on Java 17, where a fixed pool of limit platform threads is used instead.
+ */
+public class IoExecutor {
+    // prefix of the I/O thread names, the metrics keep them out of the worker pool numbers
+    static final String THREAD_PREFIX = "io-";
+
+    /**
+     * @param limit maximum number of I/O tasks running at once
+     * @return
+     */
+    public static ExecutorService create(int limit) {
+        ThreadFactory virtual = virtualThreadFactory();
+        if (virtual != null) {
+            try {
+                Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                return new Limited((ExecutorService) perTask.invoke(null, virtual), limit);
+            } catch (ReflectiveOperationException e) {
+                // fall through to platform threads
+            }
+        }
+
+        AtomicInteger next = new AtomicInteger();
+        return Executors.newFixedThreadPool(limit, r -> {
+            Thread t = new Thread(r, THREAD_PREFIX + next.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return a factory of named virtual threads, or null before Java 21
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, THREAD_PREFIX, 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Thread-per-task executor whose tasks wait for a permit before they run.
+     * The waiting happens on the task's own virtual thread, submitters never block.
+     */
+    static class Limited extends AbstractExecutorService {
+        private final ExecutorService delegate;
+        private final Semaphore permits;
+
+        Limited(ExecutorService delegate, int limit) {
+            this.delegate = delegate;
+            this.permits = new Semaphore(limit);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            delegate.execute(() -> {
+                permits.acquireUninterruptibly();
+                try {
+                    command.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bounded-memory keyword counts of one worker, for the approximate keyword mode (--approx-keywords).
+ *
+ * Two structures share the worker's memory:
+ * - a Count-Min sketch of DEPTH rows, updated with every word of every article. It is linear, so
+ *   the retraction subtracts the duplicates from it and the sketches of all workers add up to a
+ *   sketch of the unique articles, whose estimate of a word is never below its count
+ * - the worker's keyword table, which keeps the candidate heavy hitters. A word is counted exactly
+ *   from the moment it enters the table, and errors[id] bounds what it may have missed before.
+ *   When the table holds more than capacity words, the ones with the smallest count + error are
+ *   pruned and the threshold is raised to their largest count + error. A word that is not in the
+ *   table was counted at most threshold times
+ *
+ * So a word's count is in [count, count + error] if it is in a table, and in [0, threshold] if not.
+ * The same holds for the magnitude of the negative counts of a retraction. The bounds of all the
+ * workers add up, see rank.
+ */
+public class KeywordSketch {
+    static final int DEPTH = 4;
+    // estimated bytes of a candidate word in the keyword table
+    static final int BYTES_PER_CANDIDATE = 64;
+    static final int MIN_WIDTH = 1024;
+    static final int MIN_CAPACITY = 1024;
+    private static final int[] SEEDS = { 0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F };
+
+    private final int[] cells;
+    private final int shift;
+    private final int width;
+    final int capacity;
+    // a word that is not in the table was counted at most this many times
+    int threshold;
+    // error of every word in the table, by id
+    int[] errors = new int[1024];
+    // set once the sketch has counted a retraction, its counts are then negative
+    boolean retraction;
+
+    /**
+     * @param bytes memory of the sketch and the candidates together
+     * @param minCapacity candidates to keep at least, a few times the words reported
+     */
+    public KeywordSketch(long bytes, int minCapacity) {
+        long half = bytes / 2;
+        int w = (int) Math.min(1 << 26, Math.max(MIN_WIDTH, half / (4L * DEPTH)));
+        width = Integer.highestOneBit(w);
+        shift = 32 - Integer.numberOfTrailingZeros(width);
+        cells = new int[DEPTH * width];
+        capacity = (int) Math.min(1 << 24, Math.max(Math.max(MIN_CAPACITY, minCapacity), half / BYTES_PER_CANDIDATE));
+    }
+
+    private int cell(int hash, int row) {
+        int h = (hash ^ hash >>> 16) * SEEDS[row];
+        h ^= h >>> 15;
+        return row * width + ((h * 0x2C1B3C6D) >>> shift);
+    }
+
+    /**
+     * Counts delta occurrences of the word with the given hash.
+     * @param hash KeywordTable hash of the word
+     * @param delta
+     */
+    public void add(int hash, int delta) {
+        for (int r = 0; r < DEPTH; r++) cells[cell(hash, r)] += delta;
+        if (delta < 0) retraction = true;
+    }
+
+    /**
+     * @param hash
+     * @return the smallest cell of the word, never below its count when no cell is negative
+     */
+    public int estimate(int hash) {
+        int min = Integer.MAX_VALUE;
+        for (int r = 0; r < DEPTH; r++) min = Math.min(min, cells[cell(hash, r)]);
+        return min;
+    }
+
+    /**
+     * Records the error of the words the table got since it had from words.
+     * @param table
+     * @param from
+     */
+    public void admitted(KeywordTable table, int from) {
+        int n = table.size();
+        if (n > errors.length) errors = Arrays.copyOf(errors, Math.max(n, 2 * errors.length));
+        Arrays.fill(errors, from, n, threshold);
+    }
+
+    /**
+     * @param table
+     * @param stopWordCount ids below this are stop words and are never pruned
+     * @return whether the table holds more candidates than the capacity
+     */
+    public boolean full(KeywordTable table, int stopWordCount) {
+        return table.size() - stopWordCount > capacity;
+    }
+
+    /**
+     * Moves the words of table with the largest count + error, about half of them, to fresh.
+     * The threshold becomes the largest count + error of the words left out.
+     * @param table
+     * @param fresh an empty table holding only the stop words
+     * @param stopWordCount
+     */
+    public void prune(KeywordTable table, KeywordTable fresh, int stopWordCount) {
+        int n = table.size() - stopWordCount;
+        long[] bounds = new long[n];
+        for (int i = 0; i < n; i++) {
+            bounds[i] = (long) Math.abs(table.count(stopWordCount + i)) + errors[stopWordCount + i];
+        }
+        long[] sorted = bounds.clone();
+        Arrays.sort(sorted);
+        int cut = (int) Math.max(threshold, sorted[n / 2]);
+
+        int[] kept = new int[Math.max(errors.length, fresh.size() + n / 2 + 1)];
+        for (int i = 0; i < n; i++) {
+            if (bounds[i] <= cut) continue;
+            int id = fresh.mergeFrom(table, stopWordCount + i);
+            if (id >= kept.length) kept = Arrays.copyOf(kept, 2 * id);
+            kept[id] = errors[stopWordCount + i];
+        }
+        errors = kept;
+        threshold = cut;
+    }
+
+    /**
+     * Adds the cells of other, times sign.
+     * @param other
+     * @param sign
+     */
+    private void addCells(KeywordSketch other, int sign) {
+        for (int i = 0; i < cells.length; i++) cells[i] += sign * other.cells[i];
+    }
+
+    /**
+     * Bounds of the counts of some words, summed over the tables of several workers.
+     */
+    private static class Bounds {
+        final KeywordTable words = new KeywordTable();
+        long[] low = new long[1024];
+        long[] high = new long[1024];
+        // sum of the thresholds, the bound of a word no table holds
+        long missing;
+
+        /**
+         * Adds the words of one worker, its threshold is replaced by the bounds of the words it holds.
+         * @param table
+         * @param sketch
+         */
+        void add(KeywordTable table, KeywordSketch sketch) {
+            missing += sketch.threshold;
+            for (int id = 0; id < table.size(); id++) {
+                int count = Math.abs(table.count(id));
+                if (count == 0) continue;
+                int c = words.mergeFrom(table, id);
+                if (c >= low.length) {
+                    low = Arrays.copyOf(low, 2 * low.length);
+                    high = Arrays.copyOf(high, 2 * high.length);
+                }
+                low[c] += count;
+                high[c] += count + sketch.errors[id] - sketch.threshold;
+            }
+        }
+
+        long low(int id) {
+            return id >= 0 ? low[id] : 0;
+        }
+
+        long high(int id) {
+            return (id >= 0 ? high[id] : 0) + missing;
+        }
+    }
+
+    /**
+     * Ranks the candidates of every worker with their bounds.
+     * The results of the retraction only count the duplicates, so a candidate's count is in
+     * [low - duplicates high, high - duplicates low], where low and high are the bounds of its
+     * count over all the articles. The high bounds are also capped by the estimates of the sketches
+     * of the unique and of the duplicate articles.
+     * @param tables the keyword table of every result
+     * @param sketches the sketch of every result, same order
+     * @param limit number of words to rank
+     * @return words by lower bound, then word; errors hold upper minus lower bound
+     */
+    public static Ranking.Ranked rank(List<KeywordTable> tables, List<KeywordSketch> sketches, int limit) {
+        KeywordSketch first = sketches.get(0);
+        KeywordSketch unique = new KeywordSketch(first);
+        KeywordSketch duplicates = new KeywordSketch(first);
+        Bounds all = new Bounds();
+        Bounds retracted = new Bounds();
+        for (int t = 0; t < sketches.size(); t++) {
+            KeywordSketch sketch = sketches.get(t);
+            unique.addCells(sketch, 1);
+            if (sketch.retraction) duplicates.addCells(sketch, -1);
+            (sketch.retraction ? retracted : all).add(tables.get(t), sketch);
+        }
+        KeywordTable candidates = all.words;
+        long missing = all.missing;
+
+        int n = candidates.size();
+        int[] keys = new int[n];
+        int[] lows = new int[n];
+        int[] highs = new int[n];
+        int k = 0;
+        for (int c = 0; c < n; c++) {
+            int hash = candidates.hash(c);
+            int d = retracted.words.find(candidates.word(c));
+            long duplicatesHigh = Math.min(retracted.high(d), duplicates.estimate(hash));
+            lows[c] = (int) Math.max(0, all.low(c) - duplicatesHigh);
+            highs[c] = (int) Math.min(all.high(c) - retracted.low(d), unique.estimate(hash));
+            if (highs[c] > 0) keys[k++] = c;
+        }
+
+        // lower bound descending, then word
+        Integer[] order = new Integer[k];
+        for (int i = 0; i < k; i++) order[i] = keys[i];
+        Arrays.sort(order, (a, b) -> lows[a] != lows[b] ? Integer.compare(lows[b], lows[a])
+                : candidates.word(a).compareTo(candidates.word(b)));
+
+        int m = 0;
+        while (m < Math.min(k, limit) && lows[order[m]] > 0) m++;
+        String[] words = new String[m];
+        int[] counts = new int[m];
+        int[] errors = new int[m];
+        for (int i = 0; i < m; i++) {
+            words[i] = candidates.word(order[i]);
+            counts[i] = lows[order[i]];
+            errors[i] = Math.max(0, highs[order[i]] - lows[order[i]]);
+        }
+
+        // the first word is provably the top if its count is exact and nothing else can reach it
+        boolean exact = m > 0 && errors[0] == 0 && missing < counts[0];
+        for (int i = 1; exact && i < k; i++) {
+            int c = order[i];
+            exact = highs[c] < counts[0] || highs[c] == counts[0] && candidates.word(c).compareTo(words[0]) > 0;
+        }
+        return new Ranking.Ranked(words, counts, errors, exact);
+    }
+
+    /**
+     * An empty sketch of the same size as other.
+     * @param other
+     */
+    private KeywordSketch(KeywordSketch other) {
+        width = other.width;
+        shift = other.shift;
+        cells = new int[other.cells.length];
+        capacity = other.capacity;
+    }
+}
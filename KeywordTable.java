@@ -0,0 +1,266 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Open-addressing table of words stored as chars, each word gets a dense id and an int count.
+ * Words can be looked up straight from a char buffer, the String of a word is only built on demand.
+ */
+public class KeywordTable {
+    private int[] slots;
+    private int mask;
+
+    private int[] hashes;
+    private int[] keyStart;
+    private int[] keyLength;
+    private int[] counts;
+    private String[] words;
+    private char[] chars;
+    private int charsUsed;
+    private int size;
+
+    public KeywordTable() {
+        this(1024);
+    }
+
+    public KeywordTable(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+        slots = new int[capacity];
+        mask = capacity - 1;
+        hashes = new int[capacity / 2];
+        keyStart = new int[capacity / 2];
+        keyLength = new int[capacity / 2];
+        counts = new int[capacity / 2];
+        words = new String[capacity / 2];
+        chars = new char[capacity * 4];
+    }
+
+    /**
+     * Same hash as String.hashCode, so words from Strings and from char buffers agree.
+     * @param buf
+     * @param len
+     * @return
+     */
+    public static int hash(char[] buf, int len) {
+        int h = 0;
+        for (int i = 0; i < len; i++) h = 31 * h + buf[i];
+        return h;
+    }
+
+    /**
+     * Returns the id of the word buf[0..len), adding it if it is not in the table.
+     * @param buf
+     * @param len
+     * @param hash hash(buf, len)
+     * @return
+     */
+    public int findOrAdd(char[] buf, int len, int hash) {
+        return findOrAdd(buf, 0, len, hash);
+    }
+
+    private int findOrAdd(char[] buf, int offset, int len, int hash) {
+        int idx = spread(hash) & mask;
+        int slot;
+        while ((slot = slots[idx]) != 0) {
+            int id = slot - 1;
+            if (hashes[id] == hash && matches(id, buf, offset, len)) return id;
+            idx = (idx + 1) & mask;
+        }
+        return insert(idx, buf, offset, len, hash);
+    }
+
+    /**
+     * Returns the id of the word buf[0..len) or -1.
+     * @param buf
+     * @param len
+     * @param hash
+     * @return
+     */
+    public int find(char[] buf, int len, int hash) {
+        int idx = spread(hash) & mask;
+        int slot;
+        while ((slot = slots[idx]) != 0) {
+            int id = slot - 1;
+            if (hashes[id] == hash && matches(id, buf, 0, len)) return id;
+            idx = (idx + 1) & mask;
+        }
+        return -1;
+    }
+
+    public int find(String word) {
+        char[] buf = word.toCharArray();
+        return find(buf, buf.length, word.hashCode());
+    }
+
+    public int findOrAdd(String word) {
+        char[] buf = word.toCharArray();
+        return findOrAdd(buf, buf.length, word.hashCode());
+    }
+
+    /**
+     * Adds the word otherId of other to this table, together with its count.
+     * @param other
+     * @param otherId
+     * @return the id of the word in this table
+     */
+    public int mergeFrom(KeywordTable other, int otherId) {
+        int id = findOrAdd(other.chars, other.keyStart[otherId], other.keyLength[otherId], other.hashes[otherId]);
+        counts[id] += other.counts[otherId];
+        if (words[id] == null) words[id] = other.words[otherId];
+        return id;
+    }
+
+    /**
+     * Splits the ids of all words with a non-zero count into shards by hash.
+     * The same word always lands in the same shard, whatever table it comes from.
+     * @param numShards
+     * @return
+     */
+    public IntList[] partition(int numShards) {
+        IntList[] shards = new IntList[numShards];
+        for (int i = 0; i < numShards; i++) shards[i] = new IntList(Math.max(16, size / numShards));
+        for (int id = 0; id < size; id++) {
+            if (counts[id] != 0) shards[shardOf(hashes[id], numShards)].add(id);
+        }
+        return shards;
+    }
+
+    /**
+     * Maps a hash to a shard using its high bits, the low ones pick the slot.
+     * @param hash
+     * @param numShards
+     * @return
+     */
+    public static int shardOf(int hash, int numShards) {
+        return (int) (((spread(hash) & 0xFFFFFFFFL) * numShards) >>> 32);
+    }
+
+    public void add(int id, int delta) {
+        counts[id] += delta;
+    }
+
+    public int count(int id) {
+        return counts[id];
+    }
+
+    public String word(int id) {
+        String w = words[id];
+        if (w == null) {
+            w = new String(chars, keyStart[id], keyLength[id]);
+            words[id] = w;
+        }
+        return w;
+    }
+
+    public int hash(int id) {
+        return hashes[id];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private boolean matches(int id, char[] buf, int offset, int len) {
+        int start = keyStart[id];
+        return keyLength[id] == len && Arrays.equals(chars, start, start + len, buf, offset, offset + len);
+    }
+
+    private int insert(int idx, char[] buf, int offset, int len, int hash) {
+        if (size == hashes.length) {
+            grow();
+            idx = spread(hash) & mask;
+            while (slots[idx] != 0) idx = (idx + 1) & mask;
+        }
+        if (charsUsed + len > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(chars.length * 2, charsUsed + len));
+        }
+        System.arraycopy(buf, offset, chars, charsUsed, len);
+
+        int id = size++;
+        hashes[id] = hash;
+        keyStart[id] = charsUsed;
+        keyLength[id] = len;
+        charsUsed += len;
+        slots[idx] = id + 1;
+        return id;
+    }
+
+    private void grow() {
+        int capacity = slots.length * 2;
+        slots = new int[capacity];
+        mask = capacity - 1;
+        hashes = Arrays.copyOf(hashes, capacity / 2);
+        keyStart = Arrays.copyOf(keyStart, capacity / 2);
+        keyLength = Arrays.copyOf(keyLength, capacity / 2);
+        counts = Arrays.copyOf(counts, capacity / 2);
+        words = Arrays.copyOf(words, capacity / 2);
+        for (int id = 0; id < size; id++) {
+            int idx = spread(hashes[id]) & mask;
+            while (slots[idx] != 0) idx = (idx + 1) & mask;
+            slots[idx] = id + 1;
+        }
+    }
+
+    /**
+     * Writes the words with a non-zero count.
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        int n = 0;
+        for (int id = 0; id < size; id++) if (counts[id] != 0) n++;
+        out.writeInt(n);
+        for (int id = 0; id < size; id++) {
+            if (counts[id] == 0) continue;
+            out.writeInt(keyLength[id]);
+            for (int i = keyStart[id]; i < keyStart[id] + keyLength[id]; i++) out.writeChar(chars[i]);
+            out.writeInt(counts[id]);
+        }
+    }
+
+    /**
+     * Writes the given words in the format of writeTo.
+     * @param out
+     * @param ids
+     * @throws IOException
+     */
+    public void writeTo(DataOutputStream out, IntList ids) throws IOException {
+        out.writeInt(ids.size());
+        for (int k = 0; k < ids.size(); k++) {
+            int id = ids.get(k);
+            out.writeInt(keyLength[id]);
+            for (int i = keyStart[id]; i < keyStart[id] + keyLength[id]; i++) out.writeChar(chars[i]);
+            out.writeInt(counts[id]);
+        }
+    }
+
+    /**
+     * @return estimated bytes taken by the table's arrays
+     */
+    public long footprint() {
+        return slots.length * 4L + hashes.length * 24L + chars.length * 2L;
+    }
+
+    /**
+     * Adds the counts written by writeTo to this table.
+     * @param in
+     * @throws IOException
+     */
+    public void readFrom(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        char[] buf = new char[64];
+        for (int k = 0; k < n; k++) {
+            int len = in.readInt();
+            if (len > buf.length) buf = new char[len];
+            for (int i = 0; i < len; i++) buf[i] = in.readChar();
+            int id = findOrAdd(buf, len, hash(buf, len));
+            add(id, in.readInt());
+        }
+    }
+
+    private static int spread(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,182 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Single-pass keyword scanner, one instance per thread.
+ * Produces the same words as lowercasing the text, removing everything except [a-z] and
+ * whitespace, and splitting on whitespace, without building any intermediate String.
+ * Words are deduplicated per text with generation stamps, so a word already seen by this
+ * thread costs no allocation at all. Every word, stop words and repeats included, can also be fed
+ * in text order to a NearDuplicates.Signer in the same pass.
+ */
+public class KeywordTokenizer {
+    private final KeywordTable table = new KeywordTable(4096);
+    // stop words are inserted first, so every id below this is a stop word
+    private final int stopWordCount;
+
+    private int[] stamps = new int[4096];
+    private int generation = 0;
+    private char[] token = new char[64];
+    private byte[] bytes = new byte[4096];
+    // state of the text being tokenized
+    private IntList out;
+    private NearDuplicates.Signer signer;
+    private int gen;
+    private int len;
+    private int hash;
+
+    public KeywordTokenizer(Set<String> stopWords) {
+        for (String word : stopWords) {
+            // a stop word with other chars than [a-z] can never match a token
+            if (!word.isEmpty() && word.chars().allMatch(c -> c >= 'a' && c <= 'z')) {
+                table.findOrAdd(word);
+            }
+        }
+        stopWordCount = table.size();
+    }
+
+    /**
+     * Appends to out the id of every distinct non-stop word of text.
+     * @param text
+     * @param out
+     */
+    public void tokenize(String text, IntList out) {
+        tokenize(text, out, null);
+    }
+
+    /**
+     * Like tokenize, also feeding every word to signer.
+     * @param text
+     * @param out null to only feed signer
+     * @param signer or null
+     */
+    public void tokenize(String text, IntList out, NearDuplicates.Signer signer) {
+        start(out, signer);
+        for (int i = 0, n = text.length(); i < n; i++) {
+            accept(text.charAt(i));
+        }
+        end();
+    }
+
+    /**
+     * Appends to out the id of every distinct non-stop word of a UTF-8 encoded text, without
+     * decoding it: only ascii letters, whitespace and the two letters below lowercasing to ascii
+     * make a difference, every other code point is dropped.
+     * @param utf8 the text, from 0 to its limit
+     * @param out
+     */
+    public void tokenize(ByteBuffer utf8, IntList out) {
+        tokenize(utf8, out, null);
+    }
+
+    /**
+     * Like tokenize, also feeding every word to signer.
+     * @param utf8
+     * @param out null to only feed signer
+     * @param signer or null
+     */
+    public void tokenize(ByteBuffer utf8, IntList out, NearDuplicates.Signer signer) {
+        int n = utf8.limit();
+        if (bytes.length < n) bytes = new byte[Math.max(n, 2 * bytes.length)];
+        // one bulk copy, then the scan runs over a heap array
+        byte[] text = bytes;
+        utf8.get(0, text, 0, n);
+
+        start(out, signer);
+        for (int i = 0; i < n; i++) {
+            byte b = text[i];
+            if (b >= 0) {
+                accept((char) b);
+            } else if (b == (byte) 0xE2 && i + 2 < n && text[i + 1] == (byte) 0x84 && text[i + 2] == (byte) 0xAA) {
+                accept('\u212A');
+                i += 2;
+            } else if (b == (byte) 0xC4 && i + 1 < n && text[i + 1] == (byte) 0xB0) {
+                accept('\u0130');
+                i += 1;
+            }
+            // any other byte belongs to a dropped code point
+        }
+        end();
+    }
+
+    private void start(IntList out, NearDuplicates.Signer signer) {
+        this.out = out;
+        this.signer = signer;
+        gen = nextGeneration();
+        len = 0;
+        hash = 0;
+    }
+
+    private void accept(char c) {
+        char lower;
+        if (c >= 'a' && c <= 'z') {
+            lower = c;
+        } else if (c >= 'A' && c <= 'Z') {
+            lower = (char) (c + ('a' - 'A'));
+        } else if (c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f' || c == '\u000B') {
+            if (len > 0) {
+                emit();
+                len = 0;
+                hash = 0;
+            }
+            return;
+        } else if (c == '\u212A') {
+            // KELVIN SIGN lowercases to an ascii k
+            lower = 'k';
+        } else if (c == '\u0130') {
+            // capital I with dot lowercases to i followed by a combining dot, which is dropped
+            lower = 'i';
+        } else {
+            return;
+        }
+
+        if (len == token.length) {
+            token = Arrays.copyOf(token, len * 2);
+        }
+        token[len++] = lower;
+        hash = 31 * hash + lower;
+    }
+
+    private void end() {
+        if (len > 0) {
+            emit();
+        }
+        out = null;
+        signer = null;
+    }
+
+    public String word(int id) {
+        return table.word(id);
+    }
+
+    /**
+     * The table this tokenizer resolves words in, its ids are the ones produced by tokenize.
+     * @return
+     */
+    public KeywordTable table() {
+        return table;
+    }
+
+    private void emit() {
+        if (signer != null) signer.word(hash);
+        if (out == null) return;
+        int id = table.findOrAdd(token, len, hash);
+        if (id >= stamps.length) {
+            stamps = Arrays.copyOf(stamps, Math.max(stamps.length * 2, id + 1));
+        }
+        if (stamps[id] == gen) return;
+        stamps[id] = gen;
+        if (id >= stopWordCount) {
+            out.add(id);
+        }
+    }
+
+    private int nextGeneration() {
+        if (++generation == 0) {
+            Arrays.fill(stamps, 0);
+            generation = 1;
+        }
+        return generation;
+    }
+}
@@ -0,0 +1,201 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Memory budget of the out-of-core mode (--memory-budget) and the spill files it writes.
+ *
+ * Every stage that can spill estimates what its in-memory structures would take and only goes to
+ * disk when that is over its share of the budget, so a corpus that fits keeps the in-memory path:
+ * - reading: texts are kept for the retraction while they fit in half of the budget, later ones
+ *   are dropped once aggregated and parsed again for the few duplicates that need them; every
+ *   worker's keyword table is spilled to hash-partitioned files once it outgrows its share of
+ *   the other half, and the partitions are added back when the keyword shards are merged
+ * - deduplication: (fingerprint, row) pairs go to hash-partitioned files that are counted one
+ *   partition per task, see Deduplicator
+ * - sorting: sorted runs of (published, uuid, row) keys are written and k-way merged, see Sorter
+ *
+ * Sizes are estimates of the arrays involved, not measured heap usage.
+ */
+public class MemoryBudget {
+    // in-memory bytes per row of the sort (two key arrays and two row arrays)
+    static final int SORT_BYTES_PER_ROW = 24;
+    // in-memory bytes per row of the deduplication (two fingerprints, two buckets, counter tables)
+    static final int DEDUP_BYTES_PER_ROW = 64;
+
+    final long bytes;
+    private final Path parent;
+    private Path directory;
+    private final AtomicInteger nextFile = new AtomicInteger();
+    private final AtomicLong textBytes = new AtomicLong();
+
+    private final Path[] keywordFiles;
+    private final DataOutputStream[] keywordSpills;
+    private final int[] keywordSegments;
+
+    /**
+     * @param bytes
+     * @param parent directory for the spill files, the system temporary directory if null
+     * @param numShards number of keyword shards
+     */
+    public MemoryBudget(long bytes, Path parent, int numShards) {
+        this.bytes = bytes;
+        this.parent = parent;
+        this.keywordFiles = new Path[numShards];
+        this.keywordSpills = new DataOutputStream[numShards];
+        this.keywordSegments = new int[numShards];
+    }
+
+    /**
+     * Parses a size such as 512m, 2g or 65536.
+     * @param size
+     * @return bytes
+     */
+    public static long parseSize(String size) {
+        String s = size.trim().toLowerCase();
+        long unit = 1;
+        if (s.endsWith("k")) unit = 1L << 10;
+        else if (s.endsWith("m")) unit = 1L << 20;
+        else if (s.endsWith("g")) unit = 1L << 30;
+        if (unit != 1) s = s.substring(0, s.length() - 1);
+        long bytes = Long.parseLong(s) * unit;
+        if (bytes <= 0) throw new IllegalArgumentException("size must be positive: " + size);
+        return bytes;
+    }
+
+    /**
+     * @param needed estimated bytes of an in-memory structure
+     * @return whether it has to be spilled
+     */
+    public boolean exceeded(long needed) {
+        return needed > bytes;
+    }
+
+    /**
+     * Reserves room for a text kept until the retraction.
+     * @param length in bytes
+     * @return false if the text has to be dropped
+     */
+    public boolean keepText(int length) {
+        long size = length;
+        if (textBytes.addAndGet(size) <= bytes / 2) return true;
+        textBytes.addAndGet(-size);
+        return false;
+    }
+
+    /**
+     * @param numThreads
+     * @return bytes the keyword table of one worker may take before it is spilled
+     */
+    public long keywordShare(int numThreads) {
+        return bytes / 2 / numThreads;
+    }
+
+    /**
+     * Appends the words of table, with their counts, to the spill files of their shards.
+     * The counts are gone from memory, so a failed write fails the run.
+     * @param table
+     * @throws UncheckedIOException if the spill files can't be written
+     */
+    public void spillKeywords(KeywordTable table) {
+        IntList[] shards = table.partition(keywordSpills.length);
+        synchronized (keywordSpills) {
+            try {
+                for (int shard = 0; shard < shards.length; shard++) {
+                    if (shards[shard].isEmpty()) continue;
+                    if (keywordSpills[shard] == null) {
+                        keywordFiles[shard] = newFile("keywords");
+                        keywordSpills[shard] = create(keywordFiles[shard]);
+                    }
+                    DataOutputStream out = keywordSpills[shard];
+                    int before = out.size();
+                    table.writeTo(out, shards[shard]);
+                    Metrics.bytesWritten(out.size() - before);
+                    keywordSegments[shard]++;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not spill keywords: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Adds the keyword counts spilled for the shard to table.
+     * @param shard
+     * @param table
+     * @throws UncheckedIOException if the spill file can't be read back
+     */
+    public void readKeywords(int shard, KeywordTable table) {
+        int segments;
+        synchronized (keywordSpills) {
+            if (keywordSpills[shard] == null) return;
+            try {
+                keywordSpills[shard].close();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not spill keywords: " + e.getMessage(), e);
+            }
+            segments = keywordSegments[shard];
+        }
+        Path file = keywordFiles[shard];
+        try (DataInputStream in = open(file)) {
+            for (int s = 0; s < segments; s++) table.readFrom(in);
+            Metrics.bytesRead(Files.size(file));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read spilled keywords: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param prefix
+     * @return a new spill file, in the spill directory created on first use
+     * @throws IOException
+     */
+    synchronized Path newFile(String prefix) throws IOException {
+        if (directory == null) {
+            directory = parent != null
+                    ? Files.createDirectories(parent).resolve("spill-" + ProcessHandle.current().pid())
+                    : Files.createTempDirectory("newsagg-spill");
+            Files.createDirectories(directory);
+        }
+        return directory.resolve(prefix + "-" + nextFile.getAndIncrement());
+    }
+
+    static DataOutputStream create(Path file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+    }
+
+    static DataInputStream open(Path file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+    }
+
+    /**
+     * Deletes every spill file.
+     */
+    public synchronized void close() {
+        if (directory == null) return;
+        for (DataOutputStream out : keywordSpills) {
+            try {
+                if (out != null) out.close();
+            } catch (IOException e) {
+                // deleted below anyway
+            }
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(p);
+            }
+        } catch (IOException e) {
+            System.err.println("Spill Error: " + e.getMessage());
+        }
+        directory = null;
+    }
+}
@@ -0,0 +1,505 @@
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-stage run metrics.
+ *
+ * Every thread is in at most one stage at a time. enter(stage) charges the wall time, CPU time and
+ * allocated bytes since the thread's last switch to the stage it was in, then switches, so a worker
+ * that parses and aggregates in turn splits its time between read and process. Tasks submitted
+ * through an instrumented executor run in the stage of the thread that submitted them. Counters
+ * (scheduling units, items, bytes) go to the current stage of the calling thread, one set per
+ * worker, which shows how evenly the dynamic scheduling (files polled from the queue, batches
+ * aggregated) spread the work.
+ *
+ * A stage's wall time runs from the first time any thread entered it to the last time one left it,
+ * stages that overlap (the article file is written while the aggregates are merged) share time.
+ * Every stage span is also a JFR event, and finish adds one summary event per stage.
+ */
+public class Metrics {
+
+    public enum Stage {
+        AUX_INPUTS("aux-inputs"), READ("read"), DEDUP("dedup"), SORT("sort"), PROCESS("process"),
+        MERGE("merge"), TOPS("tops"), WRITE("write");
+
+        final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final int NUM_STAGES = Stage.values().length;
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported();
+    private static final boolean ALLOCATED = THREADS instanceof com.sun.management.ThreadMXBean
+            && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported();
+
+    private static final ConcurrentLinkedQueue<Worker> WORKERS = new ConcurrentLinkedQueue<>();
+    private static final ThreadLocal<Worker> WORKER = ThreadLocal.withInitial(() -> {
+        Thread thread = Thread.currentThread();
+        Worker w = new Worker(thread.getName().isEmpty() ? "thread-" + thread.getId() : thread.getName());
+        WORKERS.add(w);
+        return w;
+    });
+    private static final AtomicLong[] FIRST = new AtomicLong[NUM_STAGES];
+    private static final AtomicLong[] LAST = new AtomicLong[NUM_STAGES];
+    static {
+        for (int s = 0; s < NUM_STAGES; s++) {
+            FIRST[s] = new AtomicLong(Long.MAX_VALUE);
+            LAST[s] = new AtomicLong(Long.MIN_VALUE);
+        }
+    }
+
+    // GC pauses as {start, duration} in nanoTime, recorded by the notification listener
+    private static final ConcurrentLinkedQueue<long[]> GC_PAUSES = new ConcurrentLinkedQueue<>();
+    private static long originNanos = System.nanoTime();
+    private static long originUptime = ManagementFactory.getRuntimeMXBean().getUptime();
+
+    /**
+     * Counters of one thread, indexed by stage. Only the owning thread writes them.
+     */
+    static final class Worker {
+        final String thread;
+        final long[] busy = new long[NUM_STAGES];
+        final long[] cpu = new long[NUM_STAGES];
+        final long[] allocated = new long[NUM_STAGES];
+        final long[] spans = new long[NUM_STAGES];
+        final long[] units = new long[NUM_STAGES];
+        final long[] items = new long[NUM_STAGES];
+        final long[] bytesRead = new long[NUM_STAGES];
+        final long[] bytesWritten = new long[NUM_STAGES];
+
+        Stage stage;
+        long since;
+        long sinceCpu;
+        long sinceAllocated;
+        long sinceItems;
+        StageEvent event;
+
+        Worker(String thread) {
+            this.thread = thread;
+        }
+    }
+
+    @Name("newsagg.Stage")
+    @Label("Stage Span")
+    @Category("News Aggregator")
+    static class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("Items")
+        long items;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+    }
+
+    @Name("newsagg.StageSummary")
+    @Label("Stage Summary")
+    @Category("News Aggregator")
+    static class StageSummaryEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("Wall Time")
+        @Timespan
+        long wall;
+
+        @Label("Busy Time")
+        @Timespan
+        long busy;
+
+        @Label("Units")
+        long units;
+
+        @Label("Items")
+        long items;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+
+        @Label("GC Pause Time")
+        @Timespan
+        long gcPause;
+
+        @Label("Imbalance")
+        double imbalance;
+    }
+
+    /**
+     * Starts the run clock and listens for GC pauses.
+     */
+    public static void start() {
+        originNanos = System.nanoTime();
+        originUptime = ManagementFactory.getRuntimeMXBean().getUptime();
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!(gc instanceof NotificationEmitter)) continue;
+            ((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+                if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                    return;
+                }
+                GarbageCollectionNotificationInfo info =
+                        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                // concurrent cycles run next to the application, only pauses stop it
+                if (info.getGcAction().contains("cycle")) return;
+                long start = originNanos + TimeUnit.MILLISECONDS.toNanos(info.getGcInfo().getStartTime() - originUptime);
+                GC_PAUSES.add(new long[] { start, TimeUnit.MILLISECONDS.toNanos(info.getGcInfo().getDuration()) });
+            }, null, null);
+        }
+    }
+
+    /**
+     * Switches the calling thread to stage, or out of every stage for null.
+     * @param stage
+     * @return the stage the thread was in, for switching back
+     */
+    public static Stage enter(Stage stage) {
+        Worker w = WORKER.get();
+        Stage previous = w.stage;
+        if (previous == stage) return previous;
+
+        long now = System.nanoTime();
+        long cpu = CPU_TIME ? THREADS.getCurrentThreadCpuTime() : 0;
+        long allocated = ALLOCATED ? ((com.sun.management.ThreadMXBean) THREADS).getCurrentThreadAllocatedBytes() : 0;
+        if (previous != null) {
+            int s = previous.ordinal();
+            w.busy[s] += now - w.since;
+            w.cpu[s] += cpu - w.sinceCpu;
+            w.allocated[s] += allocated - w.sinceAllocated;
+            LAST[s].accumulateAndGet(now, Math::max);
+            w.event.items = w.items[s] - w.sinceItems;
+            w.event.allocated = allocated - w.sinceAllocated;
+            w.event.commit();
+            w.event = null;
+        }
+        if (stage != null) {
+            int s = stage.ordinal();
+            FIRST[s].accumulateAndGet(now, Math::min);
+            w.spans[s]++;
+            w.sinceItems = w.items[s];
+            w.event = new StageEvent();
+            w.event.stage = stage.label;
+            w.event.begin();
+        }
+        w.stage = stage;
+        w.since = now;
+        w.sinceCpu = cpu;
+        w.sinceAllocated = allocated;
+        return previous;
+    }
+
+    /**
+     * @return the calling thread's stage, or null
+     */
+    public static Stage current() {
+        return WORKER.get().stage;
+    }
+
+    /**
+     * Counts work done in the calling thread's current stage.
+     * @param units scheduling units (files, batches, chunks)
+     * @param items articles, rows or words
+     */
+    public static void count(long units, long items) {
+        Worker w = WORKER.get();
+        if (w.stage == null) return;
+        w.units[w.stage.ordinal()] += units;
+        w.items[w.stage.ordinal()] += items;
+    }
+
+    public static void bytesRead(long bytes) {
+        Worker w = WORKER.get();
+        if (w.stage != null) w.bytesRead[w.stage.ordinal()] += bytes;
+    }
+
+    public static void bytesWritten(long bytes) {
+        Worker w = WORKER.get();
+        if (w.stage != null) w.bytesWritten[w.stage.ordinal()] += bytes;
+    }
+
+    /**
+     * Wraps an executor so every submitted task runs in the stage its submitter was in.
+     * Tasks are charged before their future completes, so the counts are complete once
+     * every future has been waited for.
+     * @param executor
+     * @return
+     */
+    public static ExecutorService instrument(ExecutorService executor) {
+        return new InstrumentedExecutor(executor);
+    }
+
+    static class InstrumentedExecutor extends AbstractExecutorService {
+        private final ExecutorService delegate;
+
+        InstrumentedExecutor(ExecutorService delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+            Stage stage = current();
+            return new FutureTask<>(() -> {
+                Stage previous = enter(stage);
+                try {
+                    return callable.call();
+                } finally {
+                    enter(previous);
+                }
+            });
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+            return newTaskFor(Executors.callable(runnable, value));
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            delegate.execute(command);
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+
+    /**
+     * Totals of one stage. Pool workers are the threads of the CPU pool, idle time and imbalance
+     * leave out the calling (main) thread and the I/O threads.
+     */
+    static class Summary {
+        final Stage stage;
+        final List<Worker> workers = new ArrayList<>();
+        long wall;
+        long busy;
+        long poolBusy;
+        long maxPoolBusy;
+        long cpu;
+        long units;
+        long items;
+        long bytesRead;
+        long bytesWritten;
+        long allocated;
+        long spans;
+        int gcPauses;
+        long gcPause;
+        long idle;
+        double imbalance;
+
+        Summary(Stage stage) {
+            this.stage = stage;
+        }
+    }
+
+    /**
+     * Switches the calling thread out of its stage, emits the summary events and writes the metrics
+     * to path (CSV for a .csv file, JSON otherwise) when it is not null. Every task must be done.
+     * @param path
+     * @param numThreads pool size, for idle time and imbalance
+     */
+    public static void finish(Path path, int numThreads) {
+        enter(null);
+        long wall = System.nanoTime() - originNanos;
+        String main = Thread.currentThread().getName();
+
+        List<Summary> summaries = new ArrayList<>();
+        for (Stage stage : Stage.values()) {
+            int s = stage.ordinal();
+            if (FIRST[s].get() == Long.MAX_VALUE) continue;
+            Summary sum = new Summary(stage);
+            long first = FIRST[s].get();
+            long last = LAST[s].get();
+            sum.wall = last - first;
+            for (Worker w : WORKERS) {
+                if (w.spans[s] == 0) continue;
+                sum.workers.add(w);
+                sum.busy += w.busy[s];
+                sum.cpu += w.cpu[s];
+                sum.units += w.units[s];
+                sum.items += w.items[s];
+                sum.bytesRead += w.bytesRead[s];
+                sum.bytesWritten += w.bytesWritten[s];
+                sum.allocated += w.allocated[s];
+                sum.spans += w.spans[s];
+                if (!w.thread.equals(main) && !w.thread.startsWith(IoExecutor.THREAD_PREFIX)) {
+                    sum.poolBusy += w.busy[s];
+                    sum.maxPoolBusy = Math.max(sum.maxPoolBusy, w.busy[s]);
+                }
+            }
+            for (long[] pause : GC_PAUSES) {
+                if (pause[0] + pause[1] >= first && pause[0] <= last) {
+                    sum.gcPauses++;
+                    sum.gcPause += pause[1];
+                }
+            }
+            sum.idle = Math.max(0, numThreads * sum.wall - sum.poolBusy);
+            sum.imbalance = sum.poolBusy > 0 ? (double) sum.maxPoolBusy * numThreads / sum.poolBusy : 0;
+            summaries.add(sum);
+
+            StageSummaryEvent event = new StageSummaryEvent();
+            event.stage = stage.label;
+            event.wall = sum.wall;
+            event.busy = sum.busy;
+            event.units = sum.units;
+            event.items = sum.items;
+            event.bytesRead = sum.bytesRead;
+            event.bytesWritten = sum.bytesWritten;
+            event.allocated = sum.allocated;
+            event.gcPause = sum.gcPause;
+            event.imbalance = sum.imbalance;
+            event.commit();
+        }
+
+        if (path == null) return;
+        try {
+            if (path.getFileName().toString().toLowerCase().endsWith(".csv")) {
+                writeCsv(path, summaries, wall);
+            } else {
+                writeJson(path, summaries, wall, numThreads);
+            }
+        } catch (IOException e) {
+            System.err.println("Metrics Error: " + e.getMessage());
+        }
+    }
+
+    private static void writeJson(Path path, List<Summary> summaries, long wall, int numThreads) throws IOException {
+        try (JsonGenerator gen = new JsonFactory().createGenerator(path.toFile(), JsonEncoding.UTF8)) {
+            gen.useDefaultPrettyPrinter();
+            gen.writeStartObject();
+            gen.writeNumberField("threads", numThreads);
+            gen.writeNumberField("wallMillis", millis(wall));
+            gen.writeNumberField("gcPauses", GC_PAUSES.size());
+            gen.writeNumberField("gcPauseMillis", millis(GC_PAUSES.stream().mapToLong(p -> p[1]).sum()));
+            gen.writeArrayFieldStart("stages");
+            for (Summary sum : summaries) {
+                gen.writeStartObject();
+                gen.writeStringField("stage", sum.stage.label);
+                gen.writeNumberField("wallMillis", millis(sum.wall));
+                gen.writeNumberField("busyMillis", millis(sum.busy));
+                gen.writeNumberField("idleMillis", millis(sum.idle));
+                gen.writeNumberField("cpuMillis", millis(sum.cpu));
+                gen.writeNumberField("spans", sum.spans);
+                gen.writeNumberField("units", sum.units);
+                gen.writeNumberField("items", sum.items);
+                gen.writeNumberField("bytesRead", sum.bytesRead);
+                gen.writeNumberField("bytesWritten", sum.bytesWritten);
+                gen.writeNumberField("allocatedBytes", sum.allocated);
+                gen.writeNumberField("gcPauses", sum.gcPauses);
+                gen.writeNumberField("gcPauseMillis", millis(sum.gcPause));
+                gen.writeNumberField("imbalance", Math.round(sum.imbalance * 1000) / 1000.0);
+                gen.writeArrayFieldStart("workers");
+                int s = sum.stage.ordinal();
+                for (Worker w : sum.workers) {
+                    gen.writeStartObject();
+                    gen.writeStringField("thread", w.thread);
+                    gen.writeNumberField("busyMillis", millis(w.busy[s]));
+                    gen.writeNumberField("idleMillis", millis(Math.max(0, sum.wall - w.busy[s])));
+                    gen.writeNumberField("cpuMillis", millis(w.cpu[s]));
+                    gen.writeNumberField("spans", w.spans[s]);
+                    gen.writeNumberField("units", w.units[s]);
+                    gen.writeNumberField("items", w.items[s]);
+                    gen.writeNumberField("bytesRead", w.bytesRead[s]);
+                    gen.writeNumberField("bytesWritten", w.bytesWritten[s]);
+                    gen.writeNumberField("allocatedBytes", w.allocated[s]);
+                    gen.writeEndObject();
+                }
+                gen.writeEndArray();
+                gen.writeEndObject();
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+        }
+    }
+
+    /**
+     * One line per stage (thread "all") followed by one line per worker of the stage.
+     */
+    private static void writeCsv(Path path, List<Summary> summaries, long wall) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(path)) {
+            out.write("stage,thread,wall_ms,busy_ms,idle_ms,cpu_ms,spans,units,items,bytes_read,bytes_written,"
+                    + "allocated_bytes,gc_pauses,gc_pause_ms,imbalance\n");
+            for (Summary sum : summaries) {
+                out.write(String.format(Locale.ROOT, "%s,all,%.3f,%.3f,%.3f,%.3f,%d,%d,%d,%d,%d,%d,%d,%.3f,%.3f%n",
+                        sum.stage.label, millis(sum.wall), millis(sum.busy), millis(sum.idle), millis(sum.cpu),
+                        sum.spans, sum.units, sum.items, sum.bytesRead, sum.bytesWritten, sum.allocated,
+                        sum.gcPauses, millis(sum.gcPause), sum.imbalance));
+                int s = sum.stage.ordinal();
+                for (Worker w : sum.workers) {
+                    out.write(String.format(Locale.ROOT, "%s,%s,%.3f,%.3f,%.3f,%.3f,%d,%d,%d,%d,%d,%d,,,%n",
+                            sum.stage.label, w.thread, millis(sum.wall), millis(w.busy[s]),
+                            millis(Math.max(0, sum.wall - w.busy[s])), millis(w.cpu[s]), w.spans[s], w.units[s],
+                            w.items[s], w.bytesRead[s], w.bytesWritten[s], w.allocated[s]));
+                }
+            }
+            out.write(String.format(Locale.ROOT, "run,all,%.3f,,,,,,,,,,%d,%.3f,%n", millis(wall),
+                    GC_PAUSES.size(), millis(GC_PAUSES.stream().mapToLong(p -> p[1]).sum())));
+        }
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+}
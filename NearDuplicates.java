@@ -0,0 +1,346 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Finds the articles whose title and text are nearly the same as another article's (--near-duplicates).
+ *
+ * Signatures: the aggregators feed the words of the title and of the text, as their tokenizer
+ * produces them, to a Signer. Every SHINGLE consecutive words make a shingle, and a shingle goes to
+ * one of NUM_HASHES bins by its hash, the bin keeping the smallest hash it gets (one permutation
+ * MinHash). An empty bin takes the value of the next bin that is not, so two signatures agree in
+ * a bin with a probability close to the Jaccard similarity of their shingle sets. An article with
+ * fewer than SHINGLE words has no shingle and is not signed.
+ *
+ * Pass 1: the signatures are cut into bands of rowsPerBand bins, and work-stealing range tasks
+ * drop every (row, band) into their own buckets by partition of the band's hash.
+ * Pass 2: partition p is owned by a single task, which groups its bands by hash in a private
+ * open-addressing table and compares every signature with the MAX_COMPARED members that joined
+ * its group last. The buckets are read in row order, so every group lists its members in row
+ * order whatever the number of ranges and partitions, and the pairs compared, hence the result,
+ * do not depend on the thread count. Only signatures sharing a band are ever compared, and at most
+ * MAX_COMPARED times per band, so the work stays near linear.
+ *
+ * Two articles whose signatures agree in at least threshold of the bins are both marked as
+ * duplicates, the same way every copy of a repeated title is.
+ */
+public class NearDuplicates {
+    static final int NUM_HASHES = 64;
+    // words per shingle, an article with fewer words is not signed
+    static final int SHINGLE = 3;
+    // partitions per worker in pass 2
+    static final int PARTITIONS_PER_THREAD = 4;
+    // members of its band group a signature is compared with, the latest ones
+    static final int MAX_COMPARED = 32;
+    private static final int EMPTY = -1;
+
+    private static final Parallel.Grain BAND_GRAIN = new Parallel.Grain();
+
+    /**
+     * Signatures computed by one aggregator, NUM_HASHES values per row.
+     */
+    static class Signatures {
+        final IntList rows = new IntList();
+        int[] values = new int[NUM_HASHES * 64];
+
+        int size() {
+            return rows.size();
+        }
+    }
+
+    /**
+     * Builds the signature of one article at a time from its words, one instance per aggregator.
+     */
+    static class Signer {
+        final Signatures signatures = new Signatures();
+        private final int[] mins = new int[NUM_HASHES];
+        private int beforePrevious;
+        private int previous;
+        private int words;
+
+        void start() {
+            Arrays.fill(mins, EMPTY);
+            words = 0;
+        }
+
+        /**
+         * @param hash KeywordTable hash of the next word
+         */
+        void word(int hash) {
+            if (++words >= SHINGLE) add(shingle(beforePrevious, previous, hash));
+            beforePrevious = previous;
+            previous = hash;
+        }
+
+        /**
+         * Appends the signature of the article, if it had at least one shingle.
+         * @param row
+         */
+        void finish(int row) {
+            // a few words alone would give every article with the same ones the same signature
+            if (words < SHINGLE) return;
+
+            // an empty bin takes the next value around the bins, shifted by how far it comes from
+            int next = EMPTY;
+            int distance = 0;
+            for (int i = 2 * NUM_HASHES - 1; i >= 0; i--) {
+                int bin = i & (NUM_HASHES - 1);
+                distance++;
+                if (mins[bin] != EMPTY) {
+                    next = mins[bin];
+                    distance = 0;
+                } else if (i < NUM_HASHES) {
+                    mins[bin] = (next + distance * 0x3C6EF372) & Integer.MAX_VALUE;
+                }
+            }
+
+            Signatures s = signatures;
+            int n = s.size();
+            if ((n + 1) * NUM_HASHES > s.values.length) s.values = Arrays.copyOf(s.values, 2 * s.values.length);
+            System.arraycopy(mins, 0, s.values, n * NUM_HASHES, NUM_HASHES);
+            s.rows.add(row);
+        }
+
+        private void add(long shingle) {
+            long h = mix(shingle);
+            int bin = (int) (h >>> 58);
+            int value = (int) h & Integer.MAX_VALUE;
+            if (mins[bin] == EMPTY || value < mins[bin]) mins[bin] = value;
+        }
+
+        private static long shingle(int a, int b, int c) {
+            return ((a * 0x9E3779B97F4A7C15L + b) * 0xC2B2AE3D27D4EB4FL) + c;
+        }
+    }
+
+    /**
+     * @param threshold
+     * @return the largest band whose LSH threshold (rows/NUM_HASHES)^(1/rows) is at most
+     *         threshold, so pairs at the threshold are very likely to share a band
+     */
+    static int rowsPerBand(double threshold) {
+        int best = 1;
+        for (int r = 1; r <= NUM_HASHES; r *= 2) {
+            if (Math.pow((double) r / NUM_HASHES, 1.0 / r) <= threshold) best = r;
+        }
+        return best;
+    }
+
+    /**
+     * Marks both articles of every pair with similar signatures, then releases the signatures.
+     * @param results results of the aggregators, with their signatures
+     * @param threshold Jaccard similarity from which two articles are near duplicates
+     * @param pool
+     * @param duplicate
+     */
+    public static void mark(List<ProcessingResult> results, double threshold, ForkJoinPool pool,
+                            boolean[] duplicate) {
+        List<Signatures> parts = new ArrayList<>();
+        for (ProcessingResult res : results) {
+            if (res.signatures != null && res.signatures.size() > 0) parts.add(res.signatures);
+            res.signatures = null;
+        }
+        // signature i of the whole set is signature i - starts[p] of part p
+        int[] starts = new int[parts.size() + 1];
+        for (int p = 0; p < parts.size(); p++) starts[p + 1] = starts[p] + parts.get(p).size();
+        int total = starts[parts.size()];
+        if (total < 2) return;
+        int[] signatureOf = new int[duplicate.length];
+        Arrays.fill(signatureOf, -1);
+        for (int p = 0; p < parts.size(); p++) {
+            IntList signed = parts.get(p).rows;
+            for (int k = 0; k < signed.size(); k++) signatureOf[signed.get(k)] = starts[p] + k;
+        }
+
+        int rows = rowsPerBand(threshold);
+        int numBands = NUM_HASHES / rows;
+        int agreeing = (int) Math.ceil(threshold * NUM_HASHES);
+        int numPartitions = PARTITIONS_PER_THREAD * pool.getParallelism();
+
+        // Pass 1: hash the bands of every row and partition them
+        ConcurrentLinkedQueue<Piece> pieces = new ConcurrentLinkedQueue<>();
+        Parallel.forRange(pool, BAND_GRAIN, duplicate.length, (start, end) -> {
+            int expected = Math.max(16, 2 * (end - start) * numBands / numPartitions);
+            IntList[] local = new IntList[numPartitions];
+            for (int p = 0; p < numPartitions; p++) local[p] = new IntList(expected);
+            for (int row = start; row < end; row++) {
+                int i = signatureOf[row];
+                if (i < 0) continue;
+                for (int band = 0; band < numBands; band++) {
+                    long key = bandKey(parts, starts, i, band, rows);
+                    IntList bucket = local[partitionOf(key, numPartitions)];
+                    bucket.add(row);
+                    bucket.add(band);
+                }
+            }
+            pieces.add(new Piece(start, local));
+        });
+
+        // Pass 2: each partition is grouped by its owner, in row order so the pairs compared do not
+        // depend on the ranges, the partitions or the scheduling
+        List<Piece> ordered = new ArrayList<>(pieces);
+        ordered.sort(Comparator.comparingInt(piece -> piece.start));
+        List<IntList[]> bucketList = new ArrayList<>();
+        for (Piece piece : ordered) bucketList.add(piece.buckets);
+        Metrics.Stage stage = Metrics.current();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int p = 0; p < numPartitions; p++) {
+            final int partition = p;
+            tasks.add(ForkJoinTask.adapt(() -> {
+                Metrics.Stage previous = Metrics.enter(stage);
+                int size = 0;
+                for (IntList[] local : bucketList) size += local[partition].size() / 2;
+                BandGroups groups = new BandGroups(size);
+                for (IntList[] local : bucketList) {
+                    IntList bucket = local[partition];
+                    for (int k = 0; k < bucket.size(); k += 2) {
+                        int row = bucket.get(k);
+                        long key = bandKey(parts, starts, signatureOf[row], bucket.get(k + 1), rows);
+                        int member = groups.add(key, row);
+                        for (int c = 0; c < MAX_COMPARED && member >= 0; c++, member = groups.previous[member]) {
+                            compare(parts, starts, signatureOf, row, groups.rows[member], agreeing, duplicate);
+                        }
+                    }
+                }
+                Metrics.count(1, size);
+                Metrics.enter(previous);
+            }));
+        }
+        pool.invoke(ForkJoinTask.adapt(() -> {
+            ForkJoinTask.invokeAll(tasks);
+        }));
+    }
+
+    private static void compare(List<Signatures> parts, int[] starts, int[] signatureOf, int rowA, int rowB,
+                                int agreeing, boolean[] duplicate) {
+        // comparing would not change anything
+        if (duplicate[rowA] && duplicate[rowB]) return;
+        int a = signatureOf[rowA];
+        int b = signatureOf[rowB];
+        int pa = partOf(starts, a);
+        int pb = partOf(starts, b);
+        Signatures sa = parts.get(pa);
+        Signatures sb = parts.get(pb);
+        int offsetA = (a - starts[pa]) * NUM_HASHES;
+        int offsetB = (b - starts[pb]) * NUM_HASHES;
+        int same = 0;
+        for (int h = 0; h < NUM_HASHES; h++) {
+            if (sa.values[offsetA + h] == sb.values[offsetB + h]) same++;
+        }
+        if (same >= agreeing) {
+            duplicate[rowA] = true;
+            duplicate[rowB] = true;
+        }
+    }
+
+    private static long bandKey(List<Signatures> parts, int[] starts, int i, int band, int rows) {
+        int p = partOf(starts, i);
+        int[] values = parts.get(p).values;
+        int offset = (i - starts[p]) * NUM_HASHES + band * rows;
+        long h = band;
+        for (int k = 0; k < rows; k++) h = h * 0x100000001B3L + values[offset + k];
+        return mix(h);
+    }
+
+    private static int partOf(int[] starts, int i) {
+        // no part is empty, so the starts are strictly increasing
+        int p = Arrays.binarySearch(starts, i);
+        return p >= 0 ? p : -p - 2;
+    }
+
+    /**
+     * Partition from the high bits of a key, the low bits are left for the table slots.
+     * @param key
+     * @param numPartitions
+     * @return
+     */
+    private static int partitionOf(long key, int numPartitions) {
+        return (int) (((key >>> 32) * numPartitions) >>> 32);
+    }
+
+    /**
+     * 64-bit finalizer from MurmurHash3.
+     * @param h
+     * @return
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Open-addressing table of the band keys of one partition. Every row added is an entry, linked
+     * to the entry of the previous member of its group.
+     */
+    private static class BandGroups {
+        private final int[] slots;
+        private final int mask;
+        private final long[] keys;
+        // latest entry of each group
+        private final int[] latest;
+        private int size;
+        // row of each entry, and entry of the member before it in its group or -1
+        final int[] rows;
+        final int[] previous;
+        private int entries;
+
+        BandGroups(int expectedSize) {
+            int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+            slots = new int[capacity];
+            mask = capacity - 1;
+            keys = new long[Math.max(expectedSize, 1)];
+            latest = new int[Math.max(expectedSize, 1)];
+            rows = new int[Math.max(expectedSize, 1)];
+            previous = new int[Math.max(expectedSize, 1)];
+        }
+
+        /**
+         * Adds row to the group of key.
+         * @param key
+         * @param row
+         * @return the entry of the member before row, -1 if row starts the group
+         */
+        int add(long key, int row) {
+            int entry = entries++;
+            rows[entry] = row;
+            int idx = (int) key & mask;
+            int slot;
+            while ((slot = slots[idx]) != 0) {
+                int group = slot - 1;
+                if (keys[group] == key) {
+                    previous[entry] = latest[group];
+                    latest[group] = entry;
+                    return previous[entry];
+                }
+                idx = (idx + 1) & mask;
+            }
+            int group = size++;
+            keys[group] = key;
+            latest[group] = entry;
+            slots[idx] = group + 1;
+            previous[entry] = -1;
+            return -1;
+        }
+    }
+
+    /**
+     * Buckets filled by one range task, starting at row start.
+     */
+    private static class Piece {
+        final int start;
+        final IntList[] buckets;
+
+        Piece(int start, IntList[] buckets) {
+            this.start = start;
+            this.buckets = buckets;
+        }
+    }
+}
@@ -1,9 +1,10 @@
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
@@ -13,87 +14,113 @@ import java.util.concurrent.Future;
 public class OutputWriter {
 
     /**
-     * Writes all articles' UUIDs and published dates to "all_articles.txt".
-     * @param articles
+     * Starts writing all articles' UUIDs and published dates to "all_articles.txt", in the order of rows.
+     * Every line's length is known from the row, so the file is split into disjoint ranges at
+     * precomputed offsets and the ranges are written in parallel.
+     * @param store
+     * @param rows
+     * @param executor pool that computes the lengths
+     * @param ioExecutor pool that writes the ranges
+     * @param numThreads
+     * @return the write tasks
      */
-    public static void writeAllArticles(List<Article> articles) {
+    public static List<Future<?>> writeAllArticles(ArticleStore store, int[] rows, ExecutorService executor,
+                                                   ExecutorService ioExecutor, int numThreads) {
         Path outputPath = Path.of("all_articles.txt");
-        StringBuilder sb = new StringBuilder();
-        for (Article art : articles) {
-            sb.append(art.getUuid()).append(" ").append(art.getPublished()).append("\n");
+        int chunkSize = (int) Math.ceil((double) rows.length / numThreads);
+
+        // Pass 1: byte length of every chunk
+        List<Future<Long>> lengthFutures = new ArrayList<>();
+        for (int i = 0; i < numThreads; i++) {
+            final int start = Math.min(i * chunkSize, rows.length);
+            final int end = Math.min(start + chunkSize, rows.length);
+            lengthFutures.add(executor.submit(() -> {
+                long length = 0;
+                for (int k = start; k < end; k++) {
+                    int row = rows[k];
+                    length += ChannelWriter.uuidLength(store, row) + 1
+                            + ChannelWriter.instantLength(store.published(row)) + 1;
+                }
+                return length;
+            }));
         }
-        try {
-            Files.writeString(outputPath, sb.toString(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        long[] offsets = new long[numThreads + 1];
+        for (int i = 0; i < numThreads; i++) {
+            try {
+                offsets[i + 1] = offsets[i] + lengthFutures.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                System.err.println("Could not write: " + e.getMessage());
+                return new ArrayList<>();
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(outputPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // sized up front so the ranges can be written in any order
+            if (offsets[numThreads] > 0) channel.write(ByteBuffer.wrap(new byte[1]), offsets[numThreads] - 1);
         } catch (IOException e) {
             System.err.println("Could not write: " + e.getMessage());
+            return new ArrayList<>();
+        }
+
+        // Pass 2: every chunk writes its own range
+        List<Future<?>> writeFutures = new ArrayList<>();
+        for (int i = 0; i < numThreads; i++) {
+            final int start = Math.min(i * chunkSize, rows.length);
+            final int end = Math.min(start + chunkSize, rows.length);
+            final long offset = offsets[i];
+            if (start == end) continue;
+            writeFutures.add(ioExecutor.submit(() -> {
+                try (ChannelWriter out = new ChannelWriter(outputPath, offset)) {
+                    for (int k = start; k < end; k++) {
+                        int row = rows[k];
+                        out.appendUuid(store, row).append(' ').appendInstant(store.published(row)).append('\n');
+                    }
+                    Metrics.count(1, end - start);
+                } catch (IOException e) {
+                    System.err.println("Could not write: " + e.getMessage());
+                }
+            }));
         }
+        return writeFutures;
     }
 
     /**
      * Writes category, language, and keyword results to respective files in parallel.
-     * @param executor
-     * @param categoryToUuids
-     * @param languageToUuids
-     * @param keywordsCount
-     * @param topKeyword
-     * @param topKeywordCount
+     * @param ioExecutor
+     * @param categoryToUuids uuid lists, already sorted
+     * @param languageToUuids uuid lists, already sorted
+     * @param keywordRanking keywords already sorted by count descending, then word; an approximate
+     *                       count is followed by how much the real one may be above it
      */
-    public static void writeResults(ExecutorService executor,
-                                    Map<String, List<String>> categoryToUuids,
-                                    Map<String, List<String>> languageToUuids,
-                                    Map<String, Integer> keywordsCount,
-                                    String topKeyword, int topKeywordCount) {
+    public static void writeResults(ExecutorService ioExecutor,
+                                    Map<String, UuidPostings> categoryToUuids,
+                                    Map<String, UuidPostings> languageToUuids,
+                                    Ranking.Ranked keywordRanking) {
         List<Future<?>> writeFutures = new ArrayList<>();
 
-        for (Map.Entry<String, List<String>> entry : categoryToUuids.entrySet()) {
-            writeFutures.add(executor.submit(() -> {
-                String category = entry.getKey();
-                List<String> uuids = entry.getValue();
-                Collections.sort(uuids);
-                String fileName = category.replace(",", "").replaceAll("\\s+", "_") + ".txt";
-                try {
-                    Files.deleteIfExists(Path.of(fileName));
-                    StringBuilder sb = new StringBuilder();
-                    for (String uuid : uuids) sb.append(uuid).append("\n");
-                    Files.writeString(Path.of(fileName), sb.toString(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-                } catch (IOException e) {
-                    System.err.println("Error writing category: " + fileName);
-                }
+        for (Map.Entry<String, UuidPostings> entry : categoryToUuids.entrySet()) {
+            writeFutures.add(ioExecutor.submit(() -> {
+                String fileName = categoryFileName(entry.getKey());
+                writeUuids(fileName, entry.getValue(), "Error writing category: ");
             }));
         }
 
-        for (Map.Entry<String, List<String>> entry : languageToUuids.entrySet()) {
-            writeFutures.add(executor.submit(() -> {
-                String lang = entry.getKey();
-                List<String> uuids = entry.getValue();
-                Collections.sort(uuids);
-                String fileName = lang.toLowerCase() + ".txt";
-                try {
-                    Files.deleteIfExists(Path.of(fileName));
-                    StringBuilder sb = new StringBuilder();
-                    for (String uuid : uuids) sb.append(uuid).append("\n");
-                    Files.writeString(Path.of(fileName), sb.toString(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-                } catch (IOException e) {
-                    System.err.println("Error writing language: " + fileName);
-                }
+        for (Map.Entry<String, UuidPostings> entry : languageToUuids.entrySet()) {
+            writeFutures.add(ioExecutor.submit(() -> {
+                String fileName = languageFileName(entry.getKey());
+                writeUuids(fileName, entry.getValue(), "Error writing language: ");
             }));
         }
 
-        List<String> keywords = new ArrayList<>(keywordsCount.keySet());
-        keywords.sort((w1, w2) -> {
-            int cmp = Integer.compare(keywordsCount.get(w2), keywordsCount.get(w1));
-            return cmp != 0 ? cmp : w1.compareTo(w2);
-        });
-
-        try {
-            Path keywordPath = Path.of("keywords_count.txt");
-            Files.deleteIfExists(keywordPath);
-            StringBuilder sb = new StringBuilder();
-            for (String word : keywords) {
-                int count = keywordsCount.get(word);
-                sb.append(word).append(" ").append(count).append("\n");
+        try (ChannelWriter out = new ChannelWriter(Path.of("keywords_count.txt"))) {
+            for (int i = 0; i < keywordRanking.size(); i++) {
+                out.append(keywordRanking.word(i)).append(' ').append(keywordRanking.count(i));
+                if (keywordRanking.error(i) > 0) out.append(" +").append(keywordRanking.error(i));
+                out.append('\n');
             }
-            Files.writeString(keywordPath, sb.toString(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            Metrics.count(1, keywordRanking.size());
         } catch (IOException e) {}
 
         for (Future<?> f : writeFutures) {
@@ -105,8 +132,57 @@ public class OutputWriter {
         }
     }
 
+    /**
+     * @param category
+     * @return name of the file with the uuids of the category
+     */
+    public static String categoryFileName(String category) {
+        return category.replace(",", "").replaceAll("\\s+", "_") + ".txt";
+    }
+
+    /**
+     * @param language
+     * @return name of the file with the uuids of the language
+     */
+    public static String languageFileName(String language) {
+        return language.toLowerCase() + ".txt";
+    }
+
+    /**
+     * Writes a sorted uuid list, one per line, formatting the canonical uuids from their two longs.
+     * @param fileName
+     * @param uuids
+     * @param error
+     */
+    private static void writeUuids(String fileName, UuidPostings uuids, String error) {
+        try (ChannelWriter out = new ChannelWriter(Path.of(fileName))) {
+            UuidPostings.Cursor cursor = uuids.cursor();
+            while (cursor.next()) {
+                if (cursor.raw != null) out.append(cursor.raw);
+                else out.appendUuid(cursor.hi, cursor.lo);
+                out.append('\n');
+            }
+            Metrics.count(1, uuids.size());
+        } catch (IOException e) {
+            System.err.println(error + fileName);
+        }
+    }
+
     /**
      * Writes the final report to "reports.txt".
+     * @param report the report, see formatReport
+     */
+    public static void writeReport(String report) {
+        try {
+            Path reportPath = Path.of("reports.txt");
+            Files.writeString(reportPath, report, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            Metrics.count(1, 7);
+            Metrics.bytesWritten(Files.size(reportPath));
+        } catch (IOException e) {}
+    }
+
+    /**
+     * Formats the final report.
      * @param duplicatesCount
      * @param uniqueCount
      * @param bestAuthor
@@ -118,26 +194,23 @@ public class OutputWriter {
      * @param mostRecentArticle
      * @param topKeyword
      * @param topKeywordCount
+     * @return
      */
-    public static void writeReport(int duplicatesCount, int uniqueCount,
-                                   String bestAuthor, int bestAuthorCount,
-                                   String topLanguage, int topLanguageCount,
-                                   String topCategory, int topCategoryCount,
-                                   String mostRecentArticle,
-                                   String topKeyword, int topKeywordCount) {
-        try {
-            Path reportPath = Path.of("reports.txt");
-            Files.deleteIfExists(reportPath);
-            StringBuilder sb = new StringBuilder();
-            sb.append("duplicates_found - ").append(duplicatesCount).append("\n");
-            sb.append("unique_articles - ").append(uniqueCount).append("\n");
-            sb.append("best_author - ").append(bestAuthor).append(" ").append(bestAuthorCount).append("\n");
-            sb.append("top_language - ").append(topLanguage).append(" ").append(topLanguageCount).append("\n");
-            String newcatFinal = topCategory.replace(",", "").replaceAll("\\s+", "_");
-            sb.append("top_category - ").append(newcatFinal).append(" ").append(topCategoryCount).append("\n");
-            sb.append("most_recent_article - ").append(mostRecentArticle).append("\n");
-            sb.append("top_keyword_en - ").append(topKeyword).append(" ").append(topKeywordCount).append("\n");
-            Files.writeString(reportPath, sb.toString(), StandardOpenOption.CREATE);
-        } catch (IOException e) {}
+    public static String formatReport(int duplicatesCount, int uniqueCount,
+                                      String bestAuthor, int bestAuthorCount,
+                                      String topLanguage, int topLanguageCount,
+                                      String topCategory, int topCategoryCount,
+                                      String mostRecentArticle,
+                                      String topKeyword, int topKeywordCount) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("duplicates_found - ").append(duplicatesCount).append("\n");
+        sb.append("unique_articles - ").append(uniqueCount).append("\n");
+        sb.append("best_author - ").append(bestAuthor).append(" ").append(bestAuthorCount).append("\n");
+        sb.append("top_language - ").append(topLanguage).append(" ").append(topLanguageCount).append("\n");
+        String newcatFinal = topCategory.replace(",", "").replaceAll("\\s+", "_");
+        sb.append("top_category - ").append(newcatFinal).append(" ").append(topCategoryCount).append("\n");
+        sb.append("most_recent_article - ").append(mostRecentArticle).append("\n");
+        sb.append("top_keyword_en - ").append(topKeyword).append(" ").append(topKeywordCount).append("\n");
+        return sb.toString();
     }
-}
\ No newline at end of file
+}
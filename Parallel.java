@@ -0,0 +1,160 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Work-stealing loops over index ranges on a ForkJoinPool.
+ *
+ * A range is halved, by cost when every index has a weight, and the halves are forked until a
+ * piece is small enough, so idle workers steal the large pieces that busy ones have not reached
+ * yet. "Small enough" is measured: every leaf records how long its cost took in its Grain, and
+ * pieces are cut to about TARGET_NANOS of work. Before the first measurement a range is cut into
+ * 4 * parallelism pieces.
+ */
+public class Parallel {
+    // work per leaf once the cost has been measured
+    static final long TARGET_NANOS = 250_000;
+
+    public interface Body {
+        void run(int from, int to);
+    }
+
+    /**
+     * Measured cost of one kind of work, shared by all the loops doing it.
+     */
+    public static class Grain {
+        private volatile double nanosPerCost;
+
+        /**
+         * Records that cost units took nanos.
+         * @param cost
+         * @param nanos
+         */
+        void record(long cost, long nanos) {
+            if (cost <= 0) return;
+            double sample = (double) nanos / cost;
+            double current = nanosPerCost;
+            nanosPerCost = current == 0 ? sample : 0.75 * current + 0.25 * sample;
+        }
+
+        /**
+         * @param nanos
+         * @param fallback returned before anything was measured
+         * @return the cost that takes about nanos
+         */
+        long costFor(long nanos, long fallback) {
+            double current = nanosPerCost;
+            return current == 0 ? fallback : Math.max(1, (long) (nanos / current));
+        }
+    }
+
+    /**
+     * Runs body over [0, n), every index costing the same.
+     * @param pool
+     * @param grain
+     * @param n
+     * @param body
+     */
+    public static void forRange(ForkJoinPool pool, Grain grain, int n, Body body) {
+        forRange(pool, grain, null, n, body);
+    }
+
+    /**
+     * Runs body over [0, n) where index i costs prefix[i + 1] - prefix[i].
+     * @param pool
+     * @param grain
+     * @param prefix cumulative costs, n + 1 entries starting with 0
+     * @param body
+     */
+    public static void forRange(ForkJoinPool pool, Grain grain, long[] prefix, Body body) {
+        forRange(pool, grain, prefix, prefix.length - 1, body);
+    }
+
+    private static void forRange(ForkJoinPool pool, Grain grain, long[] prefix, int n, Body body) {
+        if (n <= 0) return;
+        long total = prefix != null ? prefix[n] : n;
+        int parallelism = pool.getParallelism();
+        long maxLeaf = Math.max(1, total / parallelism);
+        long fallbackLeaf = Math.max(1, total / (4L * parallelism));
+        pool.invoke(new RangeTask(grain, prefix, body, maxLeaf, fallbackLeaf, Metrics.current(), 0, n));
+    }
+
+    /**
+     * Prefix sums of the costs of the rows, for forRange.
+     * @param rows
+     * @param cost
+     * @return
+     */
+    public static long[] prefixCosts(int[] rows, IntToLongFunction cost) {
+        long[] prefix = new long[rows.length + 1];
+        for (int i = 0; i < rows.length; i++) prefix[i + 1] = prefix[i] + cost.applyAsLong(rows[i]);
+        return prefix;
+    }
+
+    static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Grain grain;
+        private final long[] prefix;
+        private final Body body;
+        private final long maxLeaf;
+        private final long fallbackLeaf;
+        private final Metrics.Stage stage;
+        private final int from;
+        private final int to;
+
+        RangeTask(Grain grain, long[] prefix, Body body, long maxLeaf, long fallbackLeaf,
+                  Metrics.Stage stage, int from, int to) {
+            this.grain = grain;
+            this.prefix = prefix;
+            this.body = body;
+            this.maxLeaf = maxLeaf;
+            this.fallbackLeaf = fallbackLeaf;
+            this.stage = stage;
+            this.from = from;
+            this.to = to;
+        }
+
+        private long cost(int a, int b) {
+            return prefix != null ? prefix[b] - prefix[a] : b - a;
+        }
+
+        @Override
+        protected void compute() {
+            // the grain is looked up at every split, so it follows the measurements of this loop too
+            long leaf = Math.min(maxLeaf, grain.costFor(TARGET_NANOS, fallbackLeaf));
+            if (to - from > 1 && cost(from, to) > leaf) {
+                int mid = split();
+                RangeTask right = new RangeTask(grain, prefix, body, maxLeaf, fallbackLeaf, stage, mid, to);
+                right.fork();
+                new RangeTask(grain, prefix, body, maxLeaf, fallbackLeaf, stage, from, mid).compute();
+                right.join();
+                return;
+            }
+
+            Metrics.Stage previous = Metrics.enter(stage);
+            try {
+                long start = System.nanoTime();
+                body.run(from, to);
+                grain.record(cost(from, to), System.nanoTime() - start);
+            } finally {
+                Metrics.enter(previous);
+            }
+        }
+
+        /**
+         * @return the index splitting the range into two halves of about the same cost
+         */
+        private int split() {
+            if (prefix == null) return (from + to) >>> 1;
+            long half = prefix[from] + cost(from, to) / 2;
+            int lo = from + 1;
+            int hi = to - 1;
+            while (lo < hi) {
+                int m = (lo + hi) >>> 1;
+                if (prefix[m] < half) lo = m + 1;
+                else hi = m;
+            }
+            return lo;
+        }
+    }
+}
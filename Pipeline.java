@@ -0,0 +1,569 @@
+import com.fasterxml.jackson.core.JsonFactory;
+
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Streaming read + aggregate stage on a ForkJoinPool.
+ *
+ * Files are read ahead by the I/O executor (DataLoader.Prefetcher) and every file that comes in
+ * is parsed by its own task. The parser closes a batch once the cost of its articles reaches the
+ * batch budget and forks a task that aggregates it (categories, languages, authors, keywords),
+ * then goes on parsing while idle workers steal the aggregation tasks, so aggregation runs on
+ * articles that are still in flight. A batch left open at the end of a file is continued by the
+ * next file the same worker parses.
+ *
+ * An article costs ARTICLE_COST plus the length of the text it tokenizes, and the budget follows
+ * the measured aggregation cost to aim at BATCH_NANOS of work per batch: short articles make
+ * batches of many rows, a few huge texts make a batch of their own.
+ *
+ * Every worker thread has its own reader and aggregator. A parse task joins its aggregation tasks
+ * before it completes, so the articles in flight are bounded by the files being parsed.
+ *
+ * Duplicates are only known once everything is read, so all articles are aggregated and the
+ * contributions of the duplicates are retracted afterwards (see retract).
+ *
+ * With a memory budget, texts that do not fit are dropped once aggregated (droppedTexts finds the
+ * rows to read again for the retraction) and keyword tables that outgrow their share are spilled.
+ *
+ * In the approximate keyword mode every aggregator counts the keywords in its own KeywordSketch
+ * and its keyword table only keeps the candidate heavy hitters.
+ *
+ * With near-duplicate detection, the aggregators also compute the MinHash signature of every
+ * article from the words their tokenizer produces, tokenizing the titles and the texts that are
+ * not english only for that.
+ */
+public class Pipeline {
+    // aggregation work per batch once the cost is measured
+    static final long BATCH_NANOS = 1_000_000;
+    // cost of an article besides its text, in text bytes
+    static final int ARTICLE_COST = 256;
+    static final long MIN_BATCH_COST = 16 * 1024;
+    static final long MAX_BATCH_COST = 4 * 1024 * 1024;
+    // batch budget until the cost has been measured
+    static final long DEFAULT_BATCH_COST = 256 * 1024;
+    // files being parsed per worker
+    static final int FILES_PER_THREAD = 2;
+
+    private static final Parallel.Grain AGGREGATE_GRAIN = new Parallel.Grain();
+
+    /**
+     * A part of the store whose rows start at global row base.
+     */
+    static class Batch {
+        final ArticleStore part;
+        final int base;
+
+        Batch(ArticleStore part, int base) {
+            this.part = part;
+            this.base = base;
+        }
+    }
+
+    private final ArticleStore store;
+    private final JsonFactory factory;
+    private final ArticleParser articleParser;
+    private final DataLoader.Prefetcher files;
+    private final Map<String, Integer> fileIds;
+    private final Path cacheDirectory;
+    private final Set<String> stopWords;
+    private final MemoryBudget budget;
+    private final Supplier<KeywordSketch> sketches;
+    private final boolean signatures;
+    private final int numShards;
+
+    private final AtomicInteger nextRow;
+    private final Map<Thread, Worker> workers = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Batch> published = new ConcurrentLinkedQueue<>();
+    private final List<ProcessingResult> results = new ArrayList<>();
+
+    /**
+     * @param store store whose dictionaries the parts share, the new rows follow its rows
+     * @param factory
+     * @param articleParser
+     * @param files the files to parse, read ahead
+     * @param fileIds id of every file path, recorded as the source of its rows
+     * @param cacheDirectory directory of the parsed-article cache, or null
+     * @param stopWords
+     * @param budget memory budget, or null
+     * @param sketches makes the keyword sketch of every aggregator, or null to count keywords exactly
+     * @param signatures whether to compute the MinHash signatures of the articles
+     * @param numThreads
+     */
+    public Pipeline(ArticleStore store, JsonFactory factory, ArticleParser articleParser,
+                    DataLoader.Prefetcher files, Map<String, Integer> fileIds, Path cacheDirectory,
+                    Set<String> stopWords, MemoryBudget budget, Supplier<KeywordSketch> sketches,
+                    boolean signatures, int numThreads) {
+        this.store = store;
+        this.factory = factory;
+        this.articleParser = articleParser;
+        this.files = files;
+        this.fileIds = fileIds;
+        this.cacheDirectory = cacheDirectory;
+        this.stopWords = stopWords;
+        this.budget = budget;
+        this.sketches = sketches;
+        this.signatures = signatures;
+        this.nextRow = new AtomicInteger(store.size());
+        this.numShards = numThreads;
+    }
+
+    /**
+     * Parses and aggregates every file, one task per file.
+     * @param pool
+     * @return the parsed articles, rows in the order of their global row ids (minus store.size())
+     */
+    public ArticleStore run(ForkJoinPool pool) {
+        Semaphore parsing = new Semaphore(FILES_PER_THREAD * pool.getParallelism());
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        Metrics.Stage stage = Metrics.enter(null);
+        try {
+            while (true) {
+                DataLoader.FileContent file = files.poll(1, TimeUnit.MILLISECONDS);
+                if (file == null) {
+                    if (files.isDone()) break;
+                    continue;
+                }
+                parsing.acquire();
+                tasks.add(pool.submit(new ParseTask(file, parsing)));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        join(tasks);
+
+        // the batches still open at the end of every worker's last file
+        List<ForkJoinTask<?>> rest = new ArrayList<>();
+        for (Worker w : workers.values()) {
+            if (w.part.size() > 0) rest.add(new AggregateTask(publish(w.part), w.partCost));
+        }
+        pool.invoke(ForkJoinTask.adapt(() -> {
+            ForkJoinTask.invokeAll(rest);
+        }));
+        Metrics.enter(stage);
+
+        for (Worker w : workers.values()) {
+            w.aggregator.finish(numShards);
+            results.add(w.aggregator.result);
+        }
+
+        // the batches are only referenced by the store returned, so their texts go with it
+        workers.clear();
+        if (published.isEmpty()) return store.newPart();
+        List<Batch> batches = new ArrayList<>(published);
+        published.clear();
+        batches.sort(Comparator.comparingInt(b -> b.base));
+        List<ArticleStore> parts = new ArrayList<>();
+        for (Batch batch : batches) parts.add(batch.part);
+        return ArticleStore.concat(parts);
+    }
+
+    /**
+     * @return one result per worker, including the ones added by retract
+     */
+    public List<ProcessingResult> results() {
+        return results;
+    }
+
+    private KeywordSketch newSketch() {
+        return sketches != null ? sketches.get() : null;
+    }
+
+    private Worker worker() {
+        return workers.computeIfAbsent(Thread.currentThread(), t -> new Worker());
+    }
+
+    private Batch publish(ArticleStore part) {
+        Batch batch = new Batch(part, nextRow.getAndAdd(part.size()));
+        published.add(batch);
+        return batch;
+    }
+
+    private static long batchBudget() {
+        return Math.max(MIN_BATCH_COST, Math.min(MAX_BATCH_COST,
+                AGGREGATE_GRAIN.costFor(BATCH_NANOS, DEFAULT_BATCH_COST)));
+    }
+
+    private static void join(List<ForkJoinTask<?>> tasks) {
+        for (ForkJoinTask<?> task : tasks) {
+            try {
+                task.join();
+            } catch (UncheckedIOException e) {
+                // counts that could not be spilled are lost, the run can't go on
+                throw e;
+            } catch (RuntimeException e) {
+                System.err.println("Pipeline Error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reader, aggregator and open batch of one worker thread.
+     */
+    private class Worker {
+        final DataLoader.ArticleFileReader reader = new DataLoader.ArticleFileReader(factory, articleParser, cacheDirectory);
+        final Aggregator aggregator = new Aggregator(store, stopWords, budget,
+                budget != null ? budget.keywordShare(numShards) : 0, newSketch(),
+                signatures ? new NearDuplicates.Signer() : null);
+        ArticleStore part = store.newPart();
+        long partCost;
+    }
+
+    /**
+     * Parses one file, forking the aggregation of every batch it fills.
+     */
+    private class ParseTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final DataLoader.FileContent file;
+        private final Semaphore parsing;
+
+        ParseTask(DataLoader.FileContent file, Semaphore parsing) {
+            this.file = file;
+            this.parsing = parsing;
+        }
+
+        @Override
+        protected void compute() {
+            Metrics.Stage previous = Metrics.enter(Metrics.Stage.READ);
+            Worker w = worker();
+            List<ForkJoinTask<?>> forked = new ArrayList<>();
+            int fileId = fileIds.getOrDefault(file.path, ArticleStore.NONE);
+            int[] ordinal = { 0 };
+            long budget = batchBudget();
+            try {
+                w.reader.read(file, art -> {
+                    w.part.add(art, fileId, ordinal[0]++);
+                    w.partCost += w.aggregator.cost(w.part, w.part.size() - 1);
+                    if (w.partCost >= budget) {
+                        forked.add(new AggregateTask(publish(w.part), w.partCost).fork());
+                        w.part = store.newPart();
+                        w.partCost = 0;
+                    }
+                });
+                Metrics.count(1, ordinal[0]);
+            } catch (Exception e) {
+                System.err.println("Error reading file " + file.path + ": " + e.getMessage());
+            } finally {
+                file.release();
+                Metrics.enter(previous);
+            }
+
+            // batches nobody stole are aggregated here, newest first
+            try {
+                for (int i = forked.size() - 1; i >= 0; i--) forked.get(i).join();
+            } finally {
+                parsing.release();
+            }
+        }
+    }
+
+    /**
+     * Aggregates one batch with the aggregator of the thread that runs it.
+     */
+    private class AggregateTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Batch batch;
+        private final long cost;
+
+        AggregateTask(Batch batch, long cost) {
+            this.batch = batch;
+            this.cost = cost;
+        }
+
+        @Override
+        protected void compute() {
+            Metrics.Stage previous = Metrics.enter(Metrics.Stage.PROCESS);
+            long start = System.nanoTime();
+            worker().aggregator.add(batch);
+            AGGREGATE_GRAIN.record(cost, System.nanoTime() - start);
+            Metrics.count(1, batch.part.size());
+            Metrics.enter(previous);
+        }
+    }
+
+    /**
+     * Starts subtracting the contributions of the given rows from the aggregates, with
+     * work-stealing range tasks cut by the cost of the rows.
+     * Row lists are not touched, duplicates are filtered out of them when they are merged.
+     * The caller keeps the pool busy with other work and then calls awaitRetract.
+     * @param store
+     * @param rows
+     * @param pool
+     * @return
+     */
+    public Future<List<ProcessingResult>> retract(ArticleStore store, int[] rows, ForkJoinPool pool) {
+        Metrics.Stage stage = Metrics.current();
+        return pool.submit(() -> {
+            Metrics.Stage previous = Metrics.enter(stage);
+            Map<Thread, Aggregator> aggregators = new ConcurrentHashMap<>();
+            Aggregator costs = new Aggregator(store, stopWords);
+            long[] prefix = Parallel.prefixCosts(rows, row -> costs.cost(store, row));
+            Parallel.forRange(pool, AGGREGATE_GRAIN, prefix, (from, to) -> {
+                Aggregator aggregator = aggregators.computeIfAbsent(Thread.currentThread(),
+                        t -> new Aggregator(store, stopWords, null, 0, newSketch(), null));
+                for (int k = from; k < to; k++) {
+                    aggregator.accumulate(store, rows[k], rows[k], -1);
+                }
+                Metrics.count(1, to - from);
+            });
+
+            List<ProcessingResult> retracted = new ArrayList<>();
+            for (Aggregator aggregator : aggregators.values()) {
+                aggregator.finish(numShards);
+                retracted.add(aggregator.result);
+            }
+            Metrics.enter(previous);
+            return retracted;
+        });
+    }
+
+    /**
+     * Adds the aggregates of rows that were already counted in a previous run: categories, languages
+     * and authors are taken from the rows, keywords from the saved counts since the texts are gone.
+     * @param store
+     * @param rows
+     * @param keywords
+     */
+    public void addBaseline(ArticleStore store, int[] rows, KeywordTable keywords) {
+        Aggregator aggregator = new Aggregator(store, stopWords);
+        for (int row : rows) {
+            aggregator.accumulate(store, row, row, 1);
+        }
+        Metrics.count(1, rows.length);
+        aggregator.result.localKeywords = keywords;
+        aggregator.result.keywordShards = keywords.partition(numShards);
+        synchronized (this) {
+            results.add(aggregator.result);
+        }
+    }
+
+    /**
+     * Rows whose english text was dropped to stay in the memory budget.
+     * @param store
+     * @param rows
+     * @return
+     */
+    public static int[] droppedTexts(ArticleStore store, int[] rows) {
+        int english = store.languageDictionary().intern("english");
+        IntList dropped = new IntList();
+        for (int row : rows) {
+            if (store.language(row) == english && !store.hasText(row)) dropped.add(row);
+        }
+        return dropped.toArray();
+    }
+
+    /**
+     * Waits for the retraction and adds its (negative) results to results().
+     * Without them the duplicates would stay counted, so a retraction that fails fails the run.
+     * @param retraction
+     * @throws UncheckedIOException if the retraction failed on I/O
+     * @throws IllegalStateException if it failed otherwise or the wait was interrupted
+     */
+    public void awaitRetract(Future<List<ProcessingResult>> retraction) {
+        List<ProcessingResult> retracted;
+        try {
+            retracted = retraction.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) throw (UncheckedIOException) e.getCause();
+            throw new IllegalStateException("Retraction failed: " + e.getCause(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Retraction interrupted", e);
+        }
+        synchronized (this) {
+            results.addAll(retracted);
+        }
+    }
+
+    /**
+     * Per-thread aggregation state.
+     */
+    static class Aggregator {
+        final ProcessingResult result = new ProcessingResult();
+        private final Set<String> stopWords;
+        private final MemoryBudget budget;
+        private final long keywordLimit;
+        private final KeywordSketch sketch;
+        private final NearDuplicates.Signer signer;
+        private KeywordTokenizer tokenizer;
+        private KeywordTable keywords;
+        private int emptySize;
+        private final IntList words = new IntList(256);
+        private final StringDictionary languageDict;
+        private final StringDictionary categoryDict;
+        private final StringDictionary authorDict;
+        private final int englishId;
+
+        Aggregator(ArticleStore store, Set<String> stopWords) {
+            this(store, stopWords, null, 0, null, null);
+        }
+
+        /**
+         * @param store
+         * @param stopWords
+         * @param budget drops the texts that do not fit and spills the keywords, or null
+         * @param keywordLimit bytes the keyword table may take before it is spilled
+         * @param sketch counts the keywords, the table only keeping the candidates, or null
+         * @param signer computes the signatures of the articles added, or null
+         */
+        Aggregator(ArticleStore store, Set<String> stopWords, MemoryBudget budget, long keywordLimit,
+                   KeywordSketch sketch, NearDuplicates.Signer signer) {
+            this.stopWords = stopWords;
+            this.budget = budget;
+            this.keywordLimit = keywordLimit;
+            this.sketch = sketch;
+            this.signer = signer;
+            newTable();
+            languageDict = store.languageDictionary();
+            categoryDict = store.categoryDictionary();
+            authorDict = store.authorDictionary();
+            englishId = languageDict.intern("english");
+        }
+
+        void add(Batch batch) {
+            for (int r = 0; r < batch.part.size(); r++) {
+                accumulate(batch.part, r, batch.base + r, 1);
+                if (budget != null && batch.part.hasText(r) && !budget.keepText(batch.part.textLength(r))) {
+                    batch.part.setText(r, null);
+                }
+            }
+            // a table holding little more than the stop words is not worth spilling
+            if (budget != null && sketch == null && keywords.footprint() > keywordLimit && keywords.size() > 2 * emptySize) {
+                budget.spillKeywords(keywords);
+                newTable();
+            }
+        }
+
+        private void newTable() {
+            tokenizer = new KeywordTokenizer(stopWords);
+            keywords = tokenizer.table();
+            emptySize = keywords.size();
+            result.localKeywords = keywords;
+        }
+
+        /**
+         * Adds (delta 1) or subtracts (delta -1) one article.
+         * @param part store holding the row
+         * @param row row in part
+         * @param globalRow row in the final store
+         * @param delta
+         */
+        void accumulate(ArticleStore part, int row, int globalRow, int delta) {
+            // categories are already unique per row
+            for (int c = part.categoryStart(row); c < part.categoryEnd(row); c++) {
+                int cat = part.categoryAt(c);
+                if (cat >= result.localCatCounts.length) growCategories(cat);
+                result.localCatCounts[cat] += delta;
+                if (delta > 0) {
+                    IntList rows = result.localCatToRows[cat];
+                    if (rows == null) rows = result.localCatToRows[cat] = new IntList();
+                    rows.add(globalRow);
+                }
+            }
+
+            int language = part.language(row);
+            if (language != ArticleStore.NONE && delta > 0) {
+                if (language >= result.localLangToRows.length) {
+                    result.localLangToRows = Arrays.copyOf(result.localLangToRows,
+                            capacity(language, result.localLangToRows.length, languageDict));
+                }
+                IntList rows = result.localLangToRows[language];
+                if (rows == null) rows = result.localLangToRows[language] = new IntList();
+                rows.add(globalRow);
+            }
+
+            // the title and the text make one stream of words for the signature
+            NearDuplicates.Signer signing = delta > 0 ? signer : null;
+            if (signing != null) {
+                signing.start();
+                if (part.title(row) != null) tokenizer.tokenize(part.title(row), null, signing);
+            }
+            if (language == englishId && part.hasText(row)) {
+                words.clear();
+                int known = keywords.size();
+                tokenizer.tokenize(part.textBytes(row), words, signing);
+                for (int w = 0; w < words.size(); w++) {
+                    keywords.add(words.get(w), delta);
+                    if (sketch != null) sketch.add(keywords.hash(words.get(w)), delta);
+                }
+                if (sketch != null) admit(known);
+            } else if (signing != null && part.hasText(row)) {
+                tokenizer.tokenize(part.textBytes(row), null, signing);
+            }
+            if (signing != null) signing.finish(globalRow);
+
+            int author = part.author(row);
+            if (author != ArticleStore.NONE) {
+                if (author >= result.localAuthors.length) {
+                    result.localAuthors = Arrays.copyOf(result.localAuthors,
+                            capacity(author, result.localAuthors.length, authorDict));
+                }
+                result.localAuthors[author] += delta;
+            }
+        }
+
+        /**
+         * Gives the words added to the table since it had known words their error, and prunes
+         * the table once it holds more candidates than the sketch allows.
+         * @param known
+         */
+        private void admit(int known) {
+            sketch.admitted(keywords, known);
+            if (sketch.full(keywords, emptySize)) {
+                KeywordTable full = keywords;
+                newTable();
+                sketch.prune(full, keywords, emptySize);
+            }
+        }
+
+        private void growCategories(int id) {
+            int capacity = capacity(id, result.localCatCounts.length, categoryDict);
+            result.localCatCounts = Arrays.copyOf(result.localCatCounts, capacity);
+            result.localCatToRows = Arrays.copyOf(result.localCatToRows, capacity);
+        }
+
+        /**
+         * @param id
+         * @param length
+         * @param dictionary
+         * @return length of an array indexed by the ids of dictionary that has room for id
+         */
+        private static int capacity(int id, int length, StringDictionary dictionary) {
+            return Math.max(id + 1, Math.max(2 * length, dictionary.size()));
+        }
+
+        /**
+         * Cost of aggregating one article: a fixed part plus the text it tokenizes.
+         * @param part
+         * @param row
+         * @return
+         */
+        long cost(ArticleStore part, int row) {
+            if (part.language(row) != englishId && signer == null) return ARTICLE_COST;
+            return ARTICLE_COST + part.textLength(row);
+        }
+
+        void finish(int numShards) {
+            result.sketch = sketch;
+            if (signer != null) result.signatures = signer.signatures;
+            if (sketch == null) result.keywordShards = keywords.partition(numShards);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+/**
+ * Aggregates computed by one worker, merged into the global results at the end.
+ * Uuid lists are kept as row indices of the ArticleStore. Categories, languages and authors are
+ * indexed by their ids in the store's dictionaries, the arrays grow as new ids show up and an
+ * id past the end has nothing.
+ */
+public class ProcessingResult {
+    IntList[] localCatToRows = new IntList[0];
+    IntList[] localLangToRows = new IntList[0];
+    // the worker's tokenizer table, counts are indexed by word id
+    KeywordTable localKeywords;
+    IntList[] keywordShards;
+    // counts the keywords in the approximate mode, localKeywords then only holds the candidates
+    KeywordSketch sketch;
+    // MinHash signatures of the articles, with near-duplicate detection
+    NearDuplicates.Signatures signatures;
+    int[] localAuthors = new int[0];
+    int[] localCatCounts = new int[0];
+}
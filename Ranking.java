@@ -0,0 +1,199 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.ToIntFunction;
+
+/**
+ * Rankings for the outputs: keywords by count descending then word, and the "top" report values.
+ * Keyword counts are snapshot into parallel String/int arrays, one per shard of the merged
+ * keyword table, so every shard is ranked by its own task and no comparison looks up a map.
+ */
+public class Ranking {
+
+    /**
+     * Words and their counts, sorted by count descending, then word.
+     * An approximate ranking (KeywordSketch.rank) holds lower bounds of the counts and how much
+     * each count may be below the real one.
+     */
+    public static class Ranked {
+        final String[] words;
+        final int[] counts;
+        // null when the counts are exact
+        final int[] errors;
+        // whether the first word is known to be the real top
+        final boolean topExact;
+
+        Ranked(String[] words, int[] counts) {
+            this(words, counts, null, true);
+        }
+
+        Ranked(String[] words, int[] counts, int[] errors, boolean topExact) {
+            this.words = words;
+            this.counts = counts;
+            this.errors = errors;
+            this.topExact = topExact;
+        }
+
+        public int size() {
+            return words.length;
+        }
+
+        public String word(int i) {
+            return words[i];
+        }
+
+        public int count(int i) {
+            return counts[i];
+        }
+
+        public int error(int i) {
+            return errors != null ? errors[i] : 0;
+        }
+    }
+
+    /**
+     * Name with the highest count, ties going to the smaller name.
+     */
+    public static class Top {
+        final String name;
+        final int count;
+
+        Top(String name, int count) {
+            this.name = name;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Ranks the words of one table with a positive count.
+     * Without a limit, the words are sorted lexicographically once and the order by count is then
+     * a primitive sort of (count, lexicographic rank) keys. With a limit, a bounded heap keeps the
+     * best limit words and only those are sorted.
+     * @param table
+     * @param limit maximum number of words to keep
+     * @return
+     */
+    public static Ranked rank(KeywordTable table, int limit) {
+        int n = 0;
+        for (int id = 0; id < table.size(); id++) {
+            if (table.count(id) > 0) n++;
+        }
+
+        if (limit < n) {
+            PriorityQueue<Integer> heap = new PriorityQueue<>(limit + 1, (a, b) -> {
+                int cmp = Integer.compare(table.count(a), table.count(b));
+                return cmp != 0 ? cmp : table.word(b).compareTo(table.word(a));
+            });
+            for (int id = 0; id < table.size(); id++) {
+                if (table.count(id) <= 0) continue;
+                heap.add(id);
+                if (heap.size() > limit) heap.poll();
+            }
+            String[] words = new String[heap.size()];
+            int[] counts = new int[heap.size()];
+            for (int i = words.length - 1; i >= 0; i--) {
+                int id = heap.poll();
+                words[i] = table.word(id);
+                counts[i] = table.count(id);
+            }
+            return new Ranked(words, counts);
+        }
+
+        String[] sorted = new String[n];
+        int k = 0;
+        for (int id = 0; id < table.size(); id++) {
+            if (table.count(id) > 0) sorted[k++] = table.word(id);
+        }
+        Arrays.sort(sorted);
+
+        // count descending in the high half, lexicographic rank in the low half
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            int count = table.count(table.findOrAdd(sorted[i]));
+            keys[i] = ((long) (Integer.MAX_VALUE - count) << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        String[] words = new String[n];
+        int[] counts = new int[n];
+        for (int i = 0; i < n; i++) {
+            words[i] = sorted[(int) keys[i]];
+            counts[i] = Integer.MAX_VALUE - (int) (keys[i] >>> 32);
+        }
+        return new Ranked(words, counts);
+    }
+
+    /**
+     * Merges rankings of disjoint word sets into one ranking of at most limit words.
+     * @param parts
+     * @param limit
+     * @return
+     */
+    public static Ranked merge(Ranked[] parts, int limit) {
+        int total = 0;
+        for (Ranked part : parts) total += part.size();
+        int n = Math.min(total, limit);
+
+        String[] words = new String[n];
+        int[] counts = new int[n];
+        int[] heads = new int[parts.length];
+        for (int k = 0; k < n; k++) {
+            int best = -1;
+            for (int p = 0; p < parts.length; p++) {
+                if (heads[p] == parts[p].size()) continue;
+                if (best < 0 || before(parts[p], heads[p], parts[best], heads[best])) best = p;
+            }
+            words[k] = parts[best].words[heads[best]];
+            counts[k] = parts[best].counts[heads[best]];
+            heads[best]++;
+        }
+        return new Ranked(words, counts);
+    }
+
+    /**
+     * Finds the key with the highest count, ties going to the lexicographically smaller key.
+     * @param map
+     * @param count
+     * @return
+     * @param <V>
+     */
+    public static <V> Top top(Map<String, V> map, ToIntFunction<V> count) {
+        String best = "";
+        int bestCount = 0;
+        for (Map.Entry<String, V> entry : map.entrySet()) {
+            String name = entry.getKey();
+            int c = count.applyAsInt(entry.getValue());
+            if (c > bestCount || (c == bestCount && name.compareTo(best) < 0)) {
+                best = name;
+                bestCount = c;
+            }
+        }
+        return new Top(best, bestCount);
+    }
+
+    /**
+     * Finds the id with the highest positive count, ties going to the lexicographically smaller value.
+     * @param counts indexed by the ids of dictionary
+     * @param dictionary
+     * @return
+     */
+    public static Top top(int[] counts, StringDictionary dictionary) {
+        String best = "";
+        int bestCount = 0;
+        for (int id = 0; id < counts.length; id++) {
+            int c = counts[id];
+            if (c <= 0 || c < bestCount) continue;
+            String name = dictionary.get(id);
+            if (c > bestCount || name.compareTo(best) < 0) {
+                best = name;
+                bestCount = c;
+            }
+        }
+        return new Top(best, bestCount);
+    }
+
+    private static boolean before(Ranked a, int i, Ranked b, int j) {
+        if (a.counts[i] != b.counts[j]) return a.counts[i] > b.counts[j];
+        return a.words[i].compareTo(b.words[j]) < 0;
+    }
+}
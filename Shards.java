@@ -0,0 +1,255 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Sharded run over several local worker processes (--workers N), talking over their stdin/stdout.
+ *
+ * The coordinator starts N copies of the program with --shard i/N. Worker i parses and aggregates
+ * its contiguous slice of the article files like a single-process run, then:
+ * 1. sends its articles without the texts (ArticleStore.writeTo) to the coordinator
+ * 2. receives the rows the coordinator found to be duplicates
+ * 3. retracts their keywords and sends its keyword counts (KeywordTable.writeTo), then exits
+ *
+ * The coordinator concatenates the articles and deduplicates them all at once, so a uuid or title
+ * repeated across shards drops every copy as in a single process. Categories, languages and authors
+ * are aggregated again from the unique rows and the keywords come from the workers' counts, like
+ * the baseline of an incremental run, so every later stage runs unchanged.
+ */
+public class Shards {
+    private static final int MAGIC = 0x4E414753;
+
+    private final List<Process> processes = new ArrayList<>();
+    private final List<DataInputStream> inputs = new ArrayList<>();
+    private final List<DataOutputStream> outputs = new ArrayList<>();
+    private int[] firstRows;
+
+    /**
+     * Starts the worker processes.
+     * @param numWorkers
+     * @param args arguments of every worker, the shard option is appended
+     * @return
+     * @throws IOException
+     */
+    public static Shards start(int numWorkers, List<String> args) throws IOException {
+        Shards shards = new Shards();
+        for (int i = 0; i < numWorkers; i++) {
+            List<String> command = new ArrayList<>();
+            command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+            // heap and GC settings carry over to the workers
+            for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+                if (option.startsWith("-X")) command.add(option);
+            }
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add("Tema1");
+            command.addAll(args);
+            command.add("--shard");
+            command.add(i + "/" + numWorkers);
+
+            Process process = new ProcessBuilder(command)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            shards.processes.add(process);
+            shards.inputs.add(new DataInputStream(new BufferedInputStream(process.getInputStream(), 1 << 16)));
+            shards.outputs.add(new DataOutputStream(new BufferedOutputStream(process.getOutputStream(), 1 << 16)));
+        }
+        return shards;
+    }
+
+    /**
+     * @param paths
+     * @param shard
+     * @param numShards
+     * @return the contiguous slice of paths parsed by the shard
+     */
+    public static String[] slice(String[] paths, int shard, int numShards) {
+        int from = (int) ((long) paths.length * shard / numShards);
+        int to = (int) ((long) paths.length * (shard + 1) / numShards);
+        return Arrays.copyOfRange(paths, from, to);
+    }
+
+    /**
+     * Reads the articles of every worker, each on its own I/O task.
+     * @param shared store whose dictionaries the articles are translated to
+     * @param ioExecutor
+     * @return the articles of all workers, in worker order
+     */
+    public ArticleStore readStores(ArticleStore shared, ExecutorService ioExecutor) {
+        List<Future<ArticleStore>> futures = new ArrayList<>();
+        for (DataInputStream in : inputs) {
+            futures.add(ioExecutor.submit(() -> {
+                if (in.readInt() != MAGIC) throw new IOException("unexpected worker output");
+                return ArticleStore.readFrom(in, shared);
+            }));
+        }
+
+        List<ArticleStore> parts = new ArrayList<>();
+        firstRows = new int[futures.size() + 1];
+        for (int i = 0; i < futures.size(); i++) {
+            ArticleStore part = await(futures.get(i), i);
+            parts.add(part);
+            firstRows[i + 1] = firstRows[i] + part.size();
+        }
+        Metrics.count(futures.size(), firstRows[futures.size()]);
+        return parts.isEmpty() ? shared.newPart() : ArticleStore.concat(parts);
+    }
+
+    /**
+     * Sends every worker the rows of its slice that are duplicates.
+     * @param duplicateRows ascending rows of readStores' result
+     */
+    public void sendDuplicates(int[] duplicateRows) {
+        int k = 0;
+        for (int i = 0; i < outputs.size(); i++) {
+            int from = k;
+            while (k < duplicateRows.length && duplicateRows[k] < firstRows[i + 1]) k++;
+            DataOutputStream out = outputs.get(i);
+            try {
+                out.writeInt(k - from);
+                for (int j = from; j < k; j++) out.writeInt(duplicateRows[j] - firstRows[i]);
+                out.close();
+            } catch (IOException e) {
+                fail(i, e);
+            }
+        }
+    }
+
+    /**
+     * Reads and merges the keyword counts of every worker, then waits for the workers to exit.
+     * @param ioExecutor
+     * @return
+     */
+    public KeywordTable receiveKeywords(ExecutorService ioExecutor) {
+        List<Future<KeywordTable>> futures = new ArrayList<>();
+        for (DataInputStream in : inputs) {
+            futures.add(ioExecutor.submit(() -> {
+                KeywordTable table = new KeywordTable();
+                table.readFrom(in);
+                in.close();
+                return table;
+            }));
+        }
+
+        KeywordTable merged = new KeywordTable();
+        for (int i = 0; i < futures.size(); i++) {
+            KeywordTable table = await(futures.get(i), i);
+            for (int id = 0; id < table.size(); id++) merged.mergeFrom(table, id);
+        }
+        for (int i = 0; i < processes.size(); i++) {
+            try {
+                int status = processes.get(i).waitFor();
+                if (status != 0) fail(i, new IOException("exit status " + status));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(i, new IOException("interrupted"));
+            }
+        }
+        return merged;
+    }
+
+    private <T> T await(Future<T> future, int worker) {
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            fail(worker, e);
+            return null;
+        }
+    }
+
+    /**
+     * A sharded run cannot be completed without every worker.
+     * @param worker
+     * @param e
+     */
+    private void fail(int worker, Exception e) {
+        System.err.println("Shard Error: worker " + worker + ": " + e.getMessage());
+        for (Process process : processes) process.destroy();
+        System.exit(1);
+    }
+
+    /**
+     * A worker's end of the protocol, over its standard streams.
+     * Anything the program prints goes to stderr so stdout only carries the protocol.
+     */
+    public static class Channel {
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        private Channel(InputStream in, OutputStream out) {
+            this.in = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+            this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        }
+
+        public static Channel ofStandardStreams() {
+            Channel channel = new Channel(new FileInputStream(FileDescriptor.in), new FileOutputStream(FileDescriptor.out));
+            System.setOut(System.err);
+            return channel;
+        }
+
+        /**
+         * @param store the worker's articles
+         * @throws IOException
+         */
+        public void sendStore(ArticleStore store) throws IOException {
+            out.writeInt(MAGIC);
+            store.writeTo(out);
+            out.flush();
+            Metrics.bytesWritten(out.size());
+        }
+
+        /**
+         * @return the worker's rows that are duplicates
+         * @throws IOException
+         */
+        public int[] receiveDuplicates() throws IOException {
+            int[] rows = new int[in.readInt()];
+            for (int i = 0; i < rows.length; i++) rows[i] = in.readInt();
+            return rows;
+        }
+
+        /**
+         * @param keywords keyword counts of the worker's unique articles
+         * @throws IOException
+         */
+        public void sendKeywords(KeywordTable keywords) throws IOException {
+            keywords.writeTo(out);
+            out.close();
+        }
+    }
+
+    /**
+     * Merges the keyword counts of all the results, and the ones spilled to the budget, into one table.
+     * @param results
+     * @param budget
+     * @param numShards
+     * @return
+     */
+    public static KeywordTable mergeKeywords(List<ProcessingResult> results, MemoryBudget budget, int numShards) {
+        KeywordTable merged = new KeywordTable();
+        for (ProcessingResult res : results) {
+            for (IntList ids : res.keywordShards) {
+                for (int k = 0; k < ids.size(); k++) merged.mergeFrom(res.localKeywords, ids.get(k));
+            }
+        }
+        if (budget != null) {
+            for (int shard = 0; shard < numShards; shard++) budget.readKeywords(shard, merged);
+        }
+        return merged;
+    }
+}
@@ -1,27 +1,322 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 
 public class Sorter {
 
+    public enum Mode {
+        MERGE, RADIX
+    }
+
+    // below this many rows the radix sort runs on the calling thread
+    private static final int PARALLEL_RADIX_THRESHOLD = 1 << 14;
+
+    /**
+     * Sorts the rows by published date (descending), then by UUID (ascending).
+     * @param mode
+     * @param store
+     * @param rows
+     * @param executor
+     * @param numThreads
+     */
+    public static void sort(Mode mode, ArticleStore store, int[] rows, ExecutorService executor, int numThreads) {
+        if (mode == Mode.RADIX) {
+            parallelRadixSort(store, rows, executor, numThreads);
+        } else {
+            parallelMergeSort(store, rows, executor, 0, rows.length - 1, numThreads);
+        }
+    }
+
+    /**
+     * Sorts like sort, but if the rows do not fit in the memory budget they are sorted in runs that
+     * do, every run is written to a spill file as (published, uuid, row) keys and the runs are
+     * k-way merged back into rows. If the spill fails, rows are left as they were and sorted in memory.
+     * @param mode
+     * @param store
+     * @param rows
+     * @param executor
+     * @param numThreads
+     * @param budget null to stay in memory
+     */
+    public static void sort(Mode mode, ArticleStore store, int[] rows, ExecutorService executor, int numThreads,
+                            MemoryBudget budget) {
+        if (budget == null || !budget.exceeded((long) rows.length * MemoryBudget.SORT_BYTES_PER_ROW)) {
+            sort(mode, store, rows, executor, numThreads);
+            return;
+        }
+
+        int runRows = (int) Math.max(1, budget.bytes / MemoryBudget.SORT_BYTES_PER_ROW);
+        List<Path> runs = new ArrayList<>();
+        try {
+            for (int from = 0; from < rows.length; from += runRows) {
+                int[] run = Arrays.copyOfRange(rows, from, Math.min(rows.length, from + runRows));
+                sort(mode, store, run, executor, numThreads);
+                Path file = budget.newFile("run");
+                runs.add(file);
+                try (DataOutputStream out = MemoryBudget.create(file)) {
+                    for (int row : run) {
+                        out.writeLong(store.published(row));
+                        out.writeLong(store.uuidHi(row));
+                        out.writeLong(store.uuidLo(row));
+                        out.writeInt(row);
+                    }
+                }
+                Metrics.bytesWritten(28L * run.length);
+            }
+            mergeRuns(store, runs, rows);
+        } catch (IOException e) {
+            System.err.println("Sort Error: " + e.getMessage());
+            sort(mode, store, rows, executor, numThreads);
+        } finally {
+            for (Path run : runs) {
+                try {
+                    Files.deleteIfExists(run);
+                } catch (IOException e) {
+                    System.err.println("Sort Error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * K-way merge of sorted run files into rows, through a heap of the runs' next keys.
+     * The merge goes to a scratch array, so rows is only overwritten once every run was read.
+     * @param store
+     * @param runs
+     * @param rows
+     * @throws IOException if a run can't be read, or holds fewer rows than were written
+     */
+    private static void mergeRuns(ArticleStore store, List<Path> runs, int[] rows) throws IOException {
+        PriorityQueue<RunReader> heap = new PriorityQueue<>(runs.size(), (a, b) -> {
+            int cmp = Long.compare(b.published, a.published);
+            if (cmp != 0) return cmp;
+            if (store.hasBinaryUuid(a.row) && store.hasBinaryUuid(b.row)) {
+                cmp = Long.compareUnsigned(a.uuidHi, b.uuidHi);
+                return cmp != 0 ? cmp : Long.compareUnsigned(a.uuidLo, b.uuidLo);
+            }
+            return store.compareUuid(a.row, b.row);
+        });
+        try {
+            for (Path run : runs) {
+                RunReader reader = new RunReader(MemoryBudget.open(run));
+                if (reader.next()) heap.add(reader);
+                else reader.in.close();
+            }
+            int[] merged = new int[rows.length];
+            int k = 0;
+            while (!heap.isEmpty()) {
+                RunReader reader = heap.poll();
+                if (k == merged.length) throw new IOException("Sort runs hold more rows than were written");
+                merged[k++] = reader.row;
+                if (reader.next()) heap.add(reader);
+                else reader.in.close();
+            }
+            if (k < merged.length) throw new IOException("Sort runs hold " + k + " of " + merged.length + " rows");
+            System.arraycopy(merged, 0, rows, 0, k);
+            Metrics.bytesRead(28L * k);
+        } finally {
+            for (RunReader reader : heap) reader.in.close();
+        }
+    }
+
+    /**
+     * Cursor over the keys of one run file.
+     */
+    private static class RunReader {
+        final DataInputStream in;
+        long published;
+        long uuidHi;
+        long uuidLo;
+        int row;
+
+        RunReader(DataInputStream in) {
+            this.in = in;
+        }
+
+        boolean next() throws IOException {
+            try {
+                published = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            uuidHi = in.readLong();
+            uuidLo = in.readLong();
+            row = in.readInt();
+            return true;
+        }
+    }
+
+    /**
+     * Perform a parallel LSD radix sort of the rows on a packed published key.
+     * The key is published flipped so that ascending unsigned order is descending date order,
+     * and only the bytes that differ between keys get a pass. Each pass is a parallel
+     * histogram, a prefix sum and a parallel stable scatter. Rows with the same published
+     * date are then ordered by their two uuid longs, runs are split between threads.
+     * @param store
+     * @param rows
+     * @param executor
+     * @param numThreads
+     */
+    public static void parallelRadixSort(ArticleStore store, int[] rows, ExecutorService executor, int numThreads) {
+        int n = rows.length;
+        if (n < 2) return;
+
+        int tasks = numThreads <= 1 || n < PARALLEL_RADIX_THRESHOLD ? 1 : numThreads;
+        int chunkSize = (int) Math.ceil((double) n / tasks);
+
+        long[] keys = new long[n];
+        long[] keysAux = new long[n];
+        int[] perm = rows.clone();
+        int[] permAux = new int[n];
+
+        try {
+            // Pack keys and find the bytes that actually vary
+            final long[] packed = keys;
+            final long first = packedKey(store, rows[0]);
+            long[] diffs = new long[tasks];
+            runChunks(executor, tasks, chunkSize, n, (t, from, to) -> {
+                long diff = 0;
+                for (int i = from; i < to; i++) {
+                    long key = packedKey(store, rows[i]);
+                    packed[i] = key;
+                    diff |= key ^ first;
+                }
+                diffs[t] = diff;
+            });
+            long diff = 0;
+            for (long d : diffs) diff |= d;
+
+            int[][] counts = new int[tasks][256];
+            for (int shift = 0; shift < 64; shift += 8) {
+                if (((diff >>> shift) & 0xFF) == 0) continue;
+                final int sh = shift;
+                final long[] srcKeys = keys;
+                final long[] dstKeys = keysAux;
+                final int[] srcRows = perm;
+                final int[] dstRows = permAux;
+
+                runChunks(executor, tasks, chunkSize, n, (t, from, to) -> {
+                    int[] c = counts[t];
+                    Arrays.fill(c, 0);
+                    for (int i = from; i < to; i++) c[(int) (srcKeys[i] >>> sh) & 0xFF]++;
+                });
+
+                // offsets[t][b]: all smaller digits first, then the same digit of earlier chunks
+                int sum = 0;
+                for (int b = 0; b < 256; b++) {
+                    for (int t = 0; t < tasks; t++) {
+                        int c = counts[t][b];
+                        counts[t][b] = sum;
+                        sum += c;
+                    }
+                }
+
+                runChunks(executor, tasks, chunkSize, n, (t, from, to) -> {
+                    int[] offsets = counts[t];
+                    for (int i = from; i < to; i++) {
+                        int pos = offsets[(int) (srcKeys[i] >>> sh) & 0xFF]++;
+                        dstKeys[pos] = srcKeys[i];
+                        dstRows[pos] = srcRows[i];
+                    }
+                });
+
+                keysAux = keys;
+                keys = dstKeys;
+                permAux = perm;
+                perm = dstRows;
+            }
+
+            // Order ties on published by uuid
+            final long[] sortedKeys = keys;
+            final int[] sorted = perm;
+            final int[] aux = permAux;
+            runChunks(executor, tasks, chunkSize, n, (t, from, to) -> {
+                // a run belongs to the chunk where it starts
+                int i = from;
+                while (i > 0 && i < to && sortedKeys[i] == sortedKeys[i - 1]) i++;
+                while (i < to) {
+                    int j = i + 1;
+                    while (j < n && sortedKeys[j] == sortedKeys[i]) j++;
+                    if (j - i > 1) sequentialMergeSort(store, sorted, aux, i, j - 1);
+                    i = j;
+                }
+            });
+
+            System.arraycopy(perm, 0, rows, 0, n);
+        } catch (InterruptedException | ExecutionException e) {
+            sequentialMergeSort(store, rows, new int[n], 0, n - 1);
+        }
+    }
+
     /**
-     * Perform a parallel merge sort on the array of Articles.
-     * @param arr
+     * Published date as a key whose unsigned ascending order is descending date order.
+     * @param store
+     * @param row
+     * @return
+     */
+    private static long packedKey(ArticleStore store, int row) {
+        return ~(store.published(row) ^ Long.MIN_VALUE);
+    }
+
+    private interface ChunkTask {
+        void run(int task, int from, int to);
+    }
+
+    /**
+     * Runs one task per chunk of [0, n) and waits for all of them.
+     * A single chunk is run on the calling thread.
+     * @param executor
+     * @param tasks
+     * @param chunkSize
+     * @param n
+     * @param task
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    private static void runChunks(ExecutorService executor, int tasks, int chunkSize, int n, ChunkTask task)
+            throws InterruptedException, ExecutionException {
+        if (tasks == 1) {
+            task.run(0, 0, n);
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < tasks; t++) {
+            final int id = t;
+            final int from = Math.min(t * chunkSize, n);
+            final int to = Math.min(from + chunkSize, n);
+            futures.add(executor.submit(() -> task.run(id, from, to)));
+        }
+        for (Future<?> f : futures) {
+            f.get();
+        }
+    }
+
+    /**
+     * Perform a parallel merge sort on an array of row indices of the store.
+     * @param store
+     * @param rows
      * @param executor
      * @param left
      * @param right
      * @param numThreads
      */
-    public static void parallelMergeSort(Article[] arr, ExecutorService executor, int left, int right, int numThreads) {
+    public static void parallelMergeSort(ArticleStore store, int[] rows, ExecutorService executor,
+                                         int left, int right, int numThreads) {
         int n = right - left + 1;
-        Article[] aux = new Article[arr.length];
+        int[] aux = new int[rows.length];
 
         if (numThreads <= 1 || n < 100) {
-            sequentialMergeSort(arr, aux, left, right);
+            sequentialMergeSort(store, rows, aux, left, right);
             return;
         }
 
@@ -35,7 +330,7 @@ public class Sorter {
 
             if (chunkStart <= chunkEnd) {
                 futures.add(executor.submit(() -> {
-                    sequentialMergeSort(arr, aux, chunkStart, chunkEnd);
+                    sequentialMergeSort(store, rows, aux, chunkStart, chunkEnd);
                 }));
             }
         }
@@ -44,7 +339,7 @@ public class Sorter {
             try {
                 f.get();
             } catch (InterruptedException | ExecutionException e) {
-                Arrays.sort(arr, left, right + 1, comparator());
+                sequentialMergeSort(store, rows, aux, left, right);
                 return;
             }
         }
@@ -54,71 +349,78 @@ public class Sorter {
             for (int i = left; i <= right - currentSize; i += 2 * currentSize) {
                 int mid = i + currentSize - 1;
                 int end = Math.min(i + 2 * currentSize - 1, right);
-                merge(arr, aux, i, mid, end);
+                merge(store, rows, aux, i, mid, end);
             }
             currentSize *= 2;
         }
     }
 
     /**
-     * Perform a sequential merge sort on the subarray arr[left..right].
-     * @param arr
+     * Merges two row arrays that are each already sorted into a new sorted array.
+     * @param store
+     * @param a
+     * @param b
+     * @return
+     */
+    public static int[] mergeSorted(ArticleStore store, int[] a, int[] b) {
+        int[] res = new int[a.length + b.length];
+        int i = 0, j = 0, k = 0;
+        while (i < a.length && j < b.length) {
+            res[k++] = store.compareRows(a[i], b[j]) <= 0 ? a[i++] : b[j++];
+        }
+        while (i < a.length) res[k++] = a[i++];
+        while (j < b.length) res[k++] = b[j++];
+        return res;
+    }
+
+    /**
+     * Perform a sequential merge sort on the subarray rows[left..right].
+     * @param store
+     * @param rows
      * @param aux
      * @param left
      * @param right
      */
-    private static void sequentialMergeSort(Article[] arr, Article[] aux, int left, int right) {
+    private static void sequentialMergeSort(ArticleStore store, int[] rows, int[] aux, int left, int right) {
         if (left >= right) return;
 
         int mid = (left + right) / 2;
-        sequentialMergeSort(arr, aux, left, mid);
-        sequentialMergeSort(arr, aux, mid + 1, right);
-        merge(arr, aux, left, mid, right);
+        sequentialMergeSort(store, rows, aux, left, mid);
+        sequentialMergeSort(store, rows, aux, mid + 1, right);
+        merge(store, rows, aux, left, mid, right);
     }
 
     /**
-     * Merge two sorted subarrays of arr using aux as auxiliary storage.
-     * @param arr
+     * Merge two sorted subarrays of rows using aux as auxiliary storage.
+     * Rows are compared by published date (descending), then by UUID (ascending).
+     * @param store
+     * @param rows
      * @param aux
      * @param left
      * @param mid
      * @param right
      */
-    private static void merge(Article[] arr, Article[] aux, int left, int mid, int right) {
-        System.arraycopy(arr, left, aux, left, right - left + 1);
+    private static void merge(ArticleStore store, int[] rows, int[] aux, int left, int mid, int right) {
+        System.arraycopy(rows, left, aux, left, right - left + 1);
 
         int i = left;
         int j = mid + 1;
         int k = left;
 
-        Comparator<Article> comp = comparator();
-
         while (i <= mid && j <= right) {
-            if (comp.compare(aux[i], aux[j]) <= 0) {
-                arr[k++] = aux[i++];
+            if (store.compareRows(aux[i], aux[j]) <= 0) {
+                rows[k++] = aux[i++];
             } else {
-                arr[k++] = aux[j++];
+                rows[k++] = aux[j++];
             }
         }
 
         while (i <= mid) {
-            arr[k++] = aux[i++];
+            rows[k++] = aux[i++];
         }
 
         while (j <= right) {
-            arr[k++] = aux[j++];
+            rows[k++] = aux[j++];
         }
     }
-
-    /**
-     * Comparator for Articles: first by published date (descending), then by UUID (ascending).
-     * @return
-     */
-    private static Comparator<Article> comparator() {
-        return (a1, a2) -> {
-            int cmp = a2.getPublished().compareTo(a1.getPublished());
-            if (cmp != 0) return cmp;
-            return a1.getUuid().compareTo(a2.getUuid());
-        };
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,80 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Concurrent interning dictionary mapping Strings to dense int ids (0, 1, 2, ...).
+ * Lookups of known values never lock, only the first insertion of a value does.
+ */
+public class StringDictionary {
+    public static final int NONE = -1;
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[16];
+    private volatile int size = 0;
+
+    /**
+     * Returns the id of value, assigning the next free id if it was not seen before.
+     * @param value
+     * @return
+     */
+    public int intern(String value) {
+        Integer id = ids.get(value);
+        if (id != null) return id;
+
+        synchronized (this) {
+            id = ids.get(value);
+            if (id != null) return id;
+
+            String[] current = values;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, size * 2);
+            }
+            current[size] = value;
+            values = current;
+            id = size;
+            size = size + 1;
+            ids.put(value, id);
+            return id;
+        }
+    }
+
+    /**
+     * Returns the id of value or NONE if it was never interned.
+     * @param value
+     * @return
+     */
+    public int find(String value) {
+        Integer id = ids.get(value);
+        return id != null ? id : NONE;
+    }
+
+    public String get(int id) {
+        return values[id];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        int n = size;
+        out.writeInt(n);
+        for (int id = 0; id < n; id++) ArticleStore.writeString(out, values[id]);
+    }
+
+    /**
+     * Reads a dictionary written by writeTo, ids are preserved.
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static StringDictionary readFrom(DataInputStream in) throws IOException {
+        StringDictionary dictionary = new StringDictionary();
+        int n = in.readInt();
+        for (int id = 0; id < n; id++) dictionary.intern(ArticleStore.readString(in));
+        return dictionary;
+    }
+}
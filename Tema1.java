@@ -1,33 +1,62 @@
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.LongAdder;
-import java.util.regex.Pattern;
+import java.util.function.Supplier;
 
-import com.fasterxml.jackson.databind.*;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.fasterxml.jackson.core.JsonFactory;
 
 public class Tema1 {
 
     private static int NUM_THREADS = 1;
+    private static int ioThreads = -1;
     private static String articlesPath;
     private static String inputsPath;
+    private static Sorter.Mode sortMode = Sorter.Mode.RADIX;
+    private static String statePath;
+    private static Path cacheDirectory;
+    private static int keywordLimit = Integer.MAX_VALUE;
+    // keywords reported by the approximate mode without --top-keywords
+    private static final int DEFAULT_APPROX_KEYWORDS = 100;
+    // memory of the keyword sketches, 0 to count keywords exactly
+    private static long approxKeywords;
+    // Jaccard similarity from which articles are near duplicates, 0 to only drop exact ones
+    private static double nearDuplicates;
+    private static Path metricsPath;
+    private static long memoryBudget;
+    private static Path spillDirectory;
+    private static int numWorkers;
+    private static int shard = -1;
+    private static int numShards;
+    // arguments passed on to the worker processes
+    private static final List<String> workerArgs = new ArrayList<>();
+    private static boolean daemon;
+    private static int refreshSeconds = 5;
+    private static int port = -1;
+
+    private static JsonFactory jsonFactory;
+    private static ArticleParser articleParser;
+    private static ForkJoinPool pool;
+    private static ExecutorService executor;
+    private static ExecutorService ioExecutor;
+    private static Shards shards;
 
     private static final Queue<String> fileQueue = new ConcurrentLinkedQueue<>();
-    private static final AtomicInteger processedArticleIndex = new AtomicInteger(0);
 
     private static String[] languages;
     private static String[] categories;
     private static Set<String> englishLingingWords = ConcurrentHashMap.newKeySet();
+    private static final Parallel.Grain INPUT_GRAIN = new Parallel.Grain();
 
-    static Map<String, List<String>> categoryToUuids = new ConcurrentHashMap<>();
-    static Map<String, List<String>> languageToUuids = new ConcurrentHashMap<>();
-    static Map<String, Integer> keywordsCount = new ConcurrentHashMap<>();
-    static Map<String, Integer> authorCounts = new ConcurrentHashMap<>();
-    static Map<String, LongAdder> categoryCounts = new ConcurrentHashMap<>();
+    static Map<String, UuidPostings> categoryToUuids = new ConcurrentHashMap<>();
+    static Map<String, UuidPostings> languageToUuids = new ConcurrentHashMap<>();
+    // indexed by the ids of the store's dictionaries
+    static int[] authorCounts = new int[0];
+    static int[] categoryCounts = new int[0];
+    static KeywordTable[] keywordShards = new KeywordTable[0];
+    static Ranking.Ranked keywordRanking;
 
     private static int uniqueCount = 0;
     private static int duplicatesCount = 0;
@@ -40,62 +69,65 @@ public class Tema1 {
     private static String mostRecentArticle = "";
     private static String topKeyword = "";
     private static int topKeywordCount = 0;
+    static String report = "";
 
-    private static List<Article> articles = new ArrayList<>();
-    private static final Pattern TEXT_PATTERN = Pattern.compile("[^a-z\\s]");
-
-    static class ProcessingResult {
-        Map<String, List<String>> localCatToUuids = new HashMap<>();
-        Map<String, List<String>> localLangToUuids = new HashMap<>();
-        Map<String, Integer> localKeywords = new HashMap<>();
-        Map<String, Integer> localAuthors = new HashMap<>();
-        Map<String, Integer> localCatCounts = new HashMap<>();
-    }
+    private static ArticleStore store = new ArticleStore();
 
     public static void main(String[] args) {
-        if (args.length != 3) {
+        if (args.length < 3) {
             System.err.println("Invalid number of arguments");
             System.exit(1);
         }
 
         init(args);
-        ObjectMapper objectMapper = new ObjectMapper();
-        objectMapper.registerModule(new JavaTimeModule());
+        Metrics.start();
+        Metrics.enter(Metrics.Stage.AUX_INPUTS);
+        // Sharded run: the workers parse while the coordinator reads the inputs
+        if (numWorkers > 0) {
+            try {
+                shards = Shards.start(numWorkers, workerArgs);
+            } catch (IOException e) {
+                System.err.println("Shard Error: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        jsonFactory = new JsonFactory();
+        articleParser = nearDuplicates > 0 ? ArticleParser.forNearDuplicates() : ArticleParser.forKeywords();
 
         String[] pathToArticles = DataLoader.readPaths(articlesPath);
+        if (shard >= 0) pathToArticles = Shards.slice(pathToArticles, shard, numShards);
         String[] pathToInputs = DataLoader.readPaths(inputsPath);
 
-        ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
-
-        // Load Articles
-        fileQueue.addAll(Arrays.asList(pathToArticles));
-        List<Future<List<Article>>> readFutures = new ArrayList<>();
-        for (int i = 0; i < NUM_THREADS; i++) {
-            readFutures.add(executor.submit(() -> DataLoader.readFilesDynamic(objectMapper, fileQueue)));
-        }
+        // Parsing and aggregation run on a work-stealing pool of NUM_THREADS platform threads,
+        // file reads and writes on the I/O executor
+        pool = new ForkJoinPool(NUM_THREADS);
+        executor = Metrics.instrument(pool);
+        ioExecutor = Metrics.instrument(IoExecutor.create(ioThreads));
 
-        for (Future<List<Article>> f : readFutures) {
-            try {
-                articles.addAll(f.get());
-            } catch (InterruptedException | ExecutionException e) {
-                System.err.println("Read Error: " + e.getMessage());
-            }
+        // Load Inputs, the stop words are needed as soon as the first batch is aggregated
+        List<Future<List<String>>> inputLines = new ArrayList<>();
+        for (String path : pathToInputs) {
+            inputLines.add(ioExecutor.submit(() -> {
+                Path inputFile = Path.of(path);
+                List<String> lines = Files.readAllLines(inputFile);
+                Metrics.bytesRead(Files.size(inputFile));
+                return lines;
+            }));
         }
-        readFutures.clear();
-
-        // Load Inputs
         List<Future<?>> futures = new ArrayList<>();
-        for (String path : pathToInputs) {
+        for (int p = 0; p < pathToInputs.length; p++) {
+            String path = pathToInputs[p];
             Path inputFile = Path.of(path);
             List<String> lines;
             try {
-                lines = Files.readAllLines(inputFile);
-            } catch (IOException e) {
+                lines = inputLines.get(p).get();
+            } catch (InterruptedException | ExecutionException e) {
                 System.err.println("Read error: " + path);
                 continue;
             }
 
             int N = Integer.parseInt(lines.get(0).trim());
+            Metrics.count(1, N);
             String lower = inputFile.getFileName().toString().toLowerCase();
 
             if (lower.contains("languages")) {
@@ -104,244 +136,492 @@ public class Tema1 {
                 categories = new String[N];
             }
 
-            for (int i = 0; i < NUM_THREADS; i++) {
-                final int id = i;
-                futures.add(executor.submit(() ->
-                        DataLoader.readChunkInputs(path, id, NUM_THREADS, lines, N, lower, languages, categories, englishLingingWords)
-                ));
-            }
+            futures.add(executor.submit(() -> Parallel.forRange(pool, INPUT_GRAIN, N, (from, to) ->
+                    DataLoader.readChunkInputs(path, from, to, lines, lower, languages, categories, englishLingingWords))));
         }
         waitForFutures(futures);
         futures.clear();
 
-        // Deduplicate Articles
-        duplicatesCount = articles.size();
-        int estimatedSize = articles.size();
-        Map<String, Integer> uuidCounts = new ConcurrentHashMap<>(estimatedSize);
-        Map<String, Integer> titleCounts = new ConcurrentHashMap<>(estimatedSize);
-
-        for (int i = 0; i < NUM_THREADS; i++) {
-            final int id = i;
-            futures.add(executor.submit(() -> {
-                int total = articles.size();
-                int chunkSize = (int) Math.ceil((double) total / NUM_THREADS);
-                int start = id * chunkSize;
-                int end = Math.min(start + chunkSize, total);
-
-                for (int j = start; j < end; j++) {
-                    Article a = articles.get(j);
-                    uuidCounts.merge(a.getUuid(), 1, Integer::sum);
-                    titleCounts.merge(a.getTitle(), 1, Integer::sum);
-                }
-            }));
+        try {
+            if (daemon) {
+                Daemon.run(Path.of(articlesPath), refreshSeconds, port, metricsPath, NUM_THREADS);
+            } else {
+                aggregate(pathToArticles, null);
+            }
+        } catch (UncheckedIOException | IllegalStateException e) {
+            // a spill, a re-read or a retraction that failed, the results would be wrong
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
         }
-        waitForFutures(futures);
-        futures.clear();
+        executor.shutdown();
+        ioExecutor.shutdown();
+        if (!daemon) Metrics.finish(metricsPath, NUM_THREADS);
+    }
 
-        List<Future<List<Article>>> filterFutures = new ArrayList<>();
-        for (int i = 0; i < NUM_THREADS; i++) {
-            final int id = i;
-            filterFutures.add(executor.submit(() -> {
-                List<Article> localUnique = new ArrayList<>();
-                int total = articles.size();
-                int chunkSize = (int) Math.ceil((double) total / NUM_THREADS);
-                int start = id * chunkSize;
-                int end = Math.min(start + chunkSize, total);
-
-                for (int j = start; j < end; j++) {
-                    Article a = articles.get(j);
-                    if (uuidCounts.get(a.getUuid()) == 1 && titleCounts.get(a.getTitle()) == 1) {
-                        localUnique.add(a);
-                    }
-                }
-                return localUnique;
-            }));
+    /**
+     * Reads, aggregates and writes every output for the given article files.
+     * @param pathToArticles
+     * @param resumed state of the daemon's previous refresh, or null
+     * @return the state of this run when running as a daemon, null otherwise
+     */
+    static IncrementalState aggregate(String[] pathToArticles, IncrementalState resumed) {
+        reset();
+        List<Future<?>> futures = new ArrayList<>();
+        // Out-of-core mode: the stages that would not fit in the budget spill to disk
+        MemoryBudget budget = memoryBudget > 0 ? new MemoryBudget(memoryBudget, spillDirectory, NUM_THREADS) : null;
+
+        // Start from the previous run's state if there is one, only the files it has not read are parsed
+        Metrics.enter(Metrics.Stage.READ);
+        IncrementalState state = resumed != null ? resumed.reuse(englishLingingWords, pathToArticles)
+                : statePath != null ? IncrementalState.load(statePath, englishLingingWords, pathToArticles) : null;
+        if (state == null) state = IncrementalState.empty();
+        ArticleStore previous = state.store;
+        // the known languages and categories get the first, dense ids
+        previous.seedDictionaries(languages, categories);
+        List<String> files = new ArrayList<>(state.files);
+        Map<String, Integer> fileIds = new HashMap<>();
+        Map<String, Integer> alreadyRead = new HashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            fileIds.putIfAbsent(files.get(i), i);
+            alreadyRead.merge(files.get(i), 1, Integer::sum);
         }
-
-        List<Article> uniqueArticles = new ArrayList<>();
-        for (Future<List<Article>> f : filterFutures) {
-            try {
-                uniqueArticles.addAll(f.get());
-            } catch (Exception e) { System.err.println("Error: " + e.getMessage()); }
+        for (String path : pathToArticles) {
+            if (alreadyRead.merge(path, -1, Integer::sum) >= 0) continue;
+            fileIds.putIfAbsent(path, files.size());
+            files.add(path);
+            if (shards == null) fileQueue.add(path);
         }
-        filterFutures.clear();
-
-        Article[] arr = uniqueArticles.toArray(new Article[0]);
-        duplicatesCount -= arr.length;
-        uniqueCount = arr.length;
-
-        // Sort Articles by published date and uuid
-        Sorter.parallelMergeSort(arr, executor, 0, arr.length - 1, NUM_THREADS);
-        articles = Arrays.asList(arr);
-
-        // Write all articles to output
-        OutputWriter.writeAllArticles(articles);
 
-        processedArticleIndex.set(0);
+        // Read and aggregate Articles, batches are aggregated while other files are still parsed
+        DataLoader.Prefetcher prefetcher = new DataLoader.Prefetcher(fileQueue, cacheDirectory, articleParser, ioThreads);
+        // Approximate keywords: the counting and the retracting aggregators share the sketch memory
+        Supplier<KeywordSketch> sketches = approxKeywords == 0 ? null
+                : () -> new KeywordSketch(approxKeywords / (2L * NUM_THREADS), 4 * keywordLimit);
+        Pipeline pipeline = new Pipeline(previous, jsonFactory, articleParser, prefetcher, fileIds,
+                cacheDirectory, englishLingingWords, budget, sketches, nearDuplicates > 0, NUM_THREADS);
+        ArticleStore added;
+        if (shards != null) {
+            added = shards.readStores(previous, ioExecutor);
+        } else {
+            prefetcher.start(ioExecutor);
+            added = pipeline.run(pool);
+        }
+        if (shard >= 0) {
+            runShard(added, pipeline, budget, files);
+            return null;
+        }
+        store = previous.size() == 0 ? added : ArticleStore.concat(List.of(previous, added));
+        int firstNewRow = previous.size();
+
+        // Deduplicate Articles, old and new together
+        Metrics.enter(Metrics.Stage.DEDUP);
+        Metrics.count(1, store.size());
+        boolean[] duplicate = Deduplicator.findDuplicates(store, pool, budget);
+        if (nearDuplicates > 0) NearDuplicates.mark(pipeline.results(), nearDuplicates, pool, duplicate);
+        int[] rows = Deduplicator.filterRows(duplicate, false, pool);
+        int[] duplicateRows = Deduplicator.filterRows(duplicate, true, pool);
+        duplicatesCount = duplicateRows.length;
+        uniqueCount = rows.length;
+
+        // The previous unique articles come back as a baseline, the ones a new article duplicates
+        // are retracted along with the new duplicates while the new unique articles are sorted
+        Metrics.enter(Metrics.Stage.PROCESS);
+        pipeline.addBaseline(store, state.sortedRows, state.keywords);
+        int[] staleRows = state.staleRows(duplicate);
+        state.reloadTexts(store, staleRows, jsonFactory, articleParser, cacheDirectory);
+        int[] newDuplicates = suffix(duplicateRows, firstNewRow);
+        if (shards != null) {
+            // the workers retract their own duplicates, their keyword counts come back with the merge
+            shards.sendDuplicates(newDuplicates);
+            newDuplicates = new int[0];
+        } else if (budget != null) {
+            DataLoader.reloadTexts(store, Pipeline.droppedTexts(store, newDuplicates), files, jsonFactory,
+                    articleParser, cacheDirectory);
+        }
+        int[] retractRows = concat(staleRows, newDuplicates);
+        Future<List<ProcessingResult>> retraction = pipeline.retract(store, retractRows, pool);
+
+        // Sort Articles by published date and uuid, then write the order-dependent outputs
+        Metrics.enter(Metrics.Stage.SORT);
+        int[] newRows = suffix(rows, firstNewRow);
+        Metrics.count(1, newRows.length);
+        Sorter.sort(sortMode, store, newRows, executor, NUM_THREADS, budget);
+        int[] sortedRows = firstNewRow == 0 ? newRows : Sorter.mergeSorted(store, state.survivingRows(duplicate), newRows);
+        Metrics.enter(Metrics.Stage.WRITE);
+        List<Future<?>> writeAllFutures = OutputWriter.writeAllArticles(store, sortedRows, executor, ioExecutor, NUM_THREADS);
+        if (sortedRows.length > 0) {
+            mostRecentArticle = store.publishedInstant(sortedRows[0]).toString() + " " + store.url(sortedRows[0]);
+        }
 
-        // Process Articles
-        List<Future<ProcessingResult>> processFutures = new ArrayList<>();
-        for (int i = 0; i < NUM_THREADS; i++) {
-            processFutures.add(executor.submit(() -> processArticlesDynamic(arr)));
+        Metrics.enter(Metrics.Stage.MERGE);
+        if (shards != null) {
+            pipeline.addBaseline(store, newRows, shards.receiveKeywords(ioExecutor));
+        }
+        pipeline.awaitRetract(retraction);
+        // the texts were only needed by the aggregation and the retraction
+        store.dropTexts();
+        List<ProcessingResult> results = pipeline.results();
+
+        authorCounts = new int[store.authorDictionary().size()];
+        categoryCounts = new int[store.categoryDictionary().size()];
+        for (ProcessingResult res : results) {
+            sumInto(authorCounts, res.localAuthors);
+            sumInto(categoryCounts, res.localCatCounts);
         }
 
-        for (Future<ProcessingResult> f : processFutures) {
-            try {
-                ProcessingResult res = f.get();
-                res.localKeywords.forEach((k, v) -> keywordsCount.merge(k, v, Integer::sum));
-                res.localAuthors.forEach((k, v) -> authorCounts.merge(k, v, Integer::sum));
-                res.localCatCounts.forEach((k, v) ->
-                        categoryCounts.computeIfAbsent(k, x -> new LongAdder()).add(v));
-                res.localCatToUuids.forEach((k, v) ->
-                        categoryToUuids.computeIfAbsent(k, x -> Collections.synchronizedList(new ArrayList<>())).addAll(v));
-                res.localLangToUuids.forEach((k, v) ->
-                        languageToUuids.computeIfAbsent(k, x -> Collections.synchronizedList(new ArrayList<>())).addAll(v));
-            } catch (InterruptedException | ExecutionException e) {
-                System.err.println("Processing Error: " + e.getMessage());
-            }
+        // Build the uuid lists of every category and language without the duplicates
+        submitUuidLists(results, true, store.categoryDictionary(), duplicate, categoryToUuids, futures);
+        submitUuidLists(results, false, store.languageDictionary(), duplicate, languageToUuids, futures);
+
+        // The author top only needs the counts, it runs next to the list and keyword tasks
+        Metrics.enter(Metrics.Stage.TOPS);
+        Future<Ranking.Top> authorTop = executor.submit(() -> Ranking.top(authorCounts, store.authorDictionary()));
+        Metrics.enter(Metrics.Stage.MERGE);
+
+        // Merge keyword counts, shard i of every worker is merged and ranked by one task.
+        // The sketches are merged and their candidates ranked by a single task instead
+        keywordShards = new KeywordTable[NUM_THREADS];
+        Ranking.Ranked[] rankedShards = new Ranking.Ranked[NUM_THREADS];
+        Future<Ranking.Ranked> approxRanking = approxKeywords == 0 ? null
+                : executor.submit(() -> rankSketches(results));
+        for (int i = 0; approxRanking == null && i < NUM_THREADS; i++) {
+            final int shard = i;
+            futures.add(executor.submit(() -> {
+                KeywordTable merged = new KeywordTable();
+                long words = 0;
+                for (ProcessingResult res : results) {
+                    IntList ids = res.keywordShards[shard];
+                    for (int k = 0; k < ids.size(); k++) {
+                        merged.mergeFrom(res.localKeywords, ids.get(k));
+                    }
+                    words += ids.size();
+                }
+                if (budget != null) budget.readKeywords(shard, merged);
+                Metrics.count(1, words);
+                Metrics.Stage stage = Metrics.enter(Metrics.Stage.TOPS);
+                rankedShards[shard] = Ranking.rank(merged, keywordLimit);
+                Metrics.count(1, merged.size());
+                Metrics.enter(stage);
+                keywordShards[shard] = merged;
+            }));
         }
-        processFutures.clear();
+        waitForFutures(futures);
+        futures.clear();
 
-        if (!articles.isEmpty()) {
-            mostRecentArticle = articles.get(0).getPublished().toString() + " " + articles.get(0).getUrl();
+        Metrics.enter(Metrics.Stage.WRITE);
+        if (statePath != null) {
+            futures.add(ioExecutor.submit(() -> IncrementalState.save(statePath, englishLingingWords, files, store,
+                    sortedRows, keywordShards)));
         }
 
         // Calculate tops
-        calculateTops();
+        Metrics.enter(Metrics.Stage.TOPS);
+        keywordRanking = approxRanking == null ? Ranking.merge(rankedShards, keywordLimit) : get(approxRanking);
+        calculateTops(authorTop);
 
         // Write results and report
-        OutputWriter.writeResults(executor, categoryToUuids, languageToUuids, keywordsCount, topKeyword, topKeywordCount);
+        Metrics.enter(Metrics.Stage.WRITE);
+        OutputWriter.writeResults(ioExecutor, categoryToUuids, languageToUuids, keywordRanking);
 
-        OutputWriter.writeReport(duplicatesCount, uniqueCount, bestAuthor, bestAuthorCount,
+        report = OutputWriter.formatReport(duplicatesCount, uniqueCount, bestAuthor, bestAuthorCount,
                 topLanguage, topLanguageCount, topCategory, topCategoryCount,
                 mostRecentArticle, topKeyword, topKeywordCount);
+        OutputWriter.writeReport(report);
 
-        executor.shutdown();
+        futures.addAll(writeAllFutures);
+        waitForFutures(futures);
+        if (budget != null) budget.close();
+        return daemon ? IncrementalState.of(englishLingingWords, files, store, sortedRows, keywordShards) : null;
     }
 
     /**
-     * Initialize parameters from command line arguments.
-     * @param args
+     * Ranks the keywords of the approximate mode from the candidates and sketches of every worker.
+     * @param results
+     * @return
      */
-    private static void init(String[] args) {
-        try { NUM_THREADS = Integer.parseInt(args[0]); }
-        catch (NumberFormatException e) { System.exit(1); }
-        articlesPath = args[1];
-        inputsPath = args[2];
+    private static Ranking.Ranked rankSketches(List<ProcessingResult> results) {
+        List<KeywordTable> tables = new ArrayList<>();
+        List<KeywordSketch> sketches = new ArrayList<>();
+        for (ProcessingResult res : results) {
+            if (res.sketch == null) continue;
+            tables.add(res.localKeywords);
+            sketches.add(res.sketch);
+        }
+        if (sketches.isEmpty()) return new Ranking.Ranked(new String[0], new int[0]);
+        return KeywordSketch.rank(tables, sketches, keywordLimit);
+    }
+
+    private static Ranking.Ranked get(Future<Ranking.Ranked> ranking) {
+        try {
+            return ranking.get();
+        } catch (InterruptedException | ExecutionException e) {
+            System.err.println("Keyword Error: " + e.getMessage());
+            return new Ranking.Ranked(new String[0], new int[0]);
+        }
     }
 
     /**
-     * Wait for all futures to complete.
-     * @param futures
+     * Clears the results of the previous run.
      */
-    private static void waitForFutures(List<Future<?>> futures) {
-        for (Future<?> f : futures) {
-            try { f.get(); }
-            catch (InterruptedException | ExecutionException e) { System.err.println("Error: " + e.getMessage()); }
-        }
+    private static void reset() {
+        fileQueue.clear();
+        categoryToUuids = new ConcurrentHashMap<>();
+        languageToUuids = new ConcurrentHashMap<>();
+        authorCounts = new int[0];
+        categoryCounts = new int[0];
+        mostRecentArticle = "";
+        topKeyword = "";
+        topKeywordCount = 0;
     }
 
     /**
-     * Calculate top author, category, language, and keyword.
+     * Worker side of a sharded run: sends the parsed articles, retracts the duplicates the
+     * coordinator found among them and sends the remaining keyword counts.
+     * @param added
+     * @param pipeline
+     * @param budget
+     * @param files
      */
-    private static void calculateTops() {
-        for (Map.Entry<String, Integer> entry : authorCounts.entrySet()) {
-            String author = entry.getKey();
-            int count = entry.getValue();
-            if (count > bestAuthorCount || (count == bestAuthorCount && author.compareTo(bestAuthor) < 0)) {
-                bestAuthor = author;
-                bestAuthorCount = count;
+    private static void runShard(ArticleStore added, Pipeline pipeline, MemoryBudget budget, List<String> files) {
+        try {
+            Shards.Channel channel = Shards.Channel.ofStandardStreams();
+            Metrics.enter(Metrics.Stage.WRITE);
+            channel.sendStore(added);
+            int[] duplicateRows = channel.receiveDuplicates();
+
+            Metrics.enter(Metrics.Stage.PROCESS);
+            if (budget != null) {
+                DataLoader.reloadTexts(added, Pipeline.droppedTexts(added, duplicateRows), files, jsonFactory,
+                        articleParser, cacheDirectory);
             }
+            pipeline.awaitRetract(pipeline.retract(added, duplicateRows, pool));
+
+            Metrics.enter(Metrics.Stage.MERGE);
+            KeywordTable keywords = Shards.mergeKeywords(pipeline.results(), budget, NUM_THREADS);
+            Metrics.enter(Metrics.Stage.WRITE);
+            channel.sendKeywords(keywords);
+        } catch (IOException e) {
+            System.err.println("Shard Error: " + e.getMessage());
+            System.exit(1);
+        } finally {
+            if (budget != null) budget.close();
         }
+    }
 
-        for (Map.Entry<String, List<String>> entry : categoryToUuids.entrySet()) {
-            String category = entry.getKey();
-            int count = entry.getValue().size();
-            if (count > topCategoryCount || (count == topCategoryCount && category.compareTo(topCategory) < 0)) {
-                topCategory = category;
-                topCategoryCount = count;
-            }
-        }
+    /**
+     * Adds counts indexed by dictionary id to totals, counts may be shorter than totals.
+     * @param totals
+     * @param counts
+     */
+    private static void sumInto(int[] totals, int[] counts) {
+        int n = Math.min(totals.length, counts.length);
+        for (int id = 0; id < n; id++) totals[id] += counts[id];
+    }
 
-        for (Map.Entry<String, List<String>> entry : languageToUuids.entrySet()) {
-            String lang = entry.getKey();
-            int count = entry.getValue().size();
-            if (count > topLanguageCount || (count == topLanguageCount && lang.compareTo(topLanguage) < 0)) {
-                topLanguage = lang;
-                topLanguageCount = count;
+    /**
+     * Submits one collectUuids task per category or language that has rows in any result.
+     * @param results
+     * @param byCategory categories if true, languages otherwise
+     * @param dictionary
+     * @param duplicate
+     * @param target
+     * @param futures
+     */
+    private static void submitUuidLists(List<ProcessingResult> results, boolean byCategory, StringDictionary dictionary,
+                                        boolean[] duplicate, Map<String, UuidPostings> target, List<Future<?>> futures) {
+        for (int id = 0; id < dictionary.size(); id++) {
+            List<IntList> lists = new ArrayList<>();
+            for (ProcessingResult res : results) {
+                IntList[] rows = byCategory ? res.localCatToRows : res.localLangToRows;
+                if (id < rows.length && rows[id] != null) lists.add(rows[id]);
             }
+            if (lists.isEmpty()) continue;
+            String key = dictionary.get(id);
+            futures.add(executor.submit(() -> collectUuids(key, lists, duplicate, target)));
         }
+    }
 
-        for (Map.Entry<String, Integer> entry : keywordsCount.entrySet()) {
-            if (entry.getValue() > topKeywordCount) {
-                topKeyword = entry.getKey();
-                topKeywordCount = entry.getValue();
-            } else if (entry.getValue() == topKeywordCount) {
-                if (topKeyword.isEmpty() || entry.getKey().compareTo(topKeyword) < 0) {
-                    topKeyword = entry.getKey();
-                }
-            }
+    /**
+     * Turns the row lists of one key into its sorted uuid list, skipping duplicates: the list of
+     * every result is sorted by its own subtask, then they are merged.
+     * Keys left without any unique article are not added.
+     * @param key
+     * @param lists
+     * @param duplicate
+     * @param target
+     */
+    private static void collectUuids(String key, List<IntList> lists, boolean[] duplicate,
+                                     Map<String, UuidPostings> target) {
+        UuidPostings[] sorted = new UuidPostings[lists.size()];
+        Metrics.Stage stage = Metrics.current();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int i = 0; i < sorted.length; i++) {
+            final int list = i;
+            tasks.add(ForkJoinTask.adapt(() -> {
+                Metrics.Stage previous = Metrics.enter(stage);
+                sorted[list] = UuidPostings.of(store, lists.get(list), duplicate);
+                Metrics.enter(previous);
+            }));
         }
+        ForkJoinTask.invokeAll(tasks);
+        UuidPostings uuids = UuidPostings.merge(Arrays.asList(sorted));
+        if (uuids.size() > 0) target.put(key, uuids);
     }
 
     /**
-     * Process articles dynamically in batches.
-     * @param articles
+     * Rows of an ascending row array that are at least from.
+     * @param rows
+     * @param from
      * @return
      */
-    private static ProcessingResult processArticlesDynamic(Article[] articles) {
-        ProcessingResult localRes = new ProcessingResult();
-        int total = articles.length;
-        final int BATCH_SIZE = 50;
-
-        while (true) {
-            int start = processedArticleIndex.getAndAdd(BATCH_SIZE);
-            if (start >= total) break;
-            int end = Math.min(start + BATCH_SIZE, total);
-
-            for (int i = start; i < end; i++) {
-                Article art = articles[i];
-
-                if (art.getCategories() != null) {
-                    Set<String> uniqueCategories = new HashSet<>(art.getCategories());
-                    for (String cat : uniqueCategories) {
-                        localRes.localCatCounts.merge(cat, 1, Integer::sum);
-                        localRes.localCatToUuids
-                                .computeIfAbsent(cat, k -> new ArrayList<>())
-                                .add(art.getUuid());
-                    }
-                }
-
-                if (art.getLanguage() != null) {
-                    localRes.localLangToUuids
-                            .computeIfAbsent(art.getLanguage(), k -> new ArrayList<>())
-                            .add(art.getUuid());
-                }
+    private static int[] suffix(int[] rows, int from) {
+        if (from == 0) return rows;
+        int i = 0;
+        while (i < rows.length && rows[i] < from) i++;
+        return Arrays.copyOfRange(rows, i, rows.length);
+    }
 
-                String text = art.getText();
-                if (text != null && "english".equals(art.getLanguage())) {
-                    text = TEXT_PATTERN.matcher(text.toLowerCase()).replaceAll("");
+    private static int[] concat(int[] a, int[] b) {
+        if (a.length == 0) return b;
+        int[] res = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, res, a.length, b.length);
+        return res;
+    }
 
-                    String[] words = text.split("\\s+");
+    /**
+     * Initialize parameters from command line arguments.
+     * Usage: NUM_THREADS articlesPath inputsPath [--sort merge|radix] [--state file] [--cache dir] [--top-keywords N]
+     *        [--metrics file.json|file.csv] [--io-threads N] [--memory-budget SIZE[k|m|g]] [--spill-dir dir]
+     *        [--workers N] [--daemon [--refresh SECONDS] [--port N]] [--approx-keywords SIZE[k|m|g]]
+     *        [--near-duplicates JACCARD]
+     * @param args
+     */
+    private static void init(String[] args) {
+        try { NUM_THREADS = Integer.parseInt(args[0]); }
+        catch (NumberFormatException e) { System.exit(1); }
+        articlesPath = args[1];
+        inputsPath = args[2];
 
-                    Set<String> seenWords = new HashSet<>();
-                    for (String word : words) {
-                        if (!word.isBlank() && !englishLingingWords.contains(word)) {
-                            seenWords.add(word);
+        workerArgs.addAll(List.of(args).subList(0, 3));
+        try {
+            for (int i = 3; i < args.length; i++) {
+                // options of the coordinator only, every other option is passed on to the workers
+                boolean local = args[i].equals("--workers") || args[i].equals("--metrics")
+                        || args[i].equals("--state") || args[i].equals("--daemon");
+                if (!local && i + 1 < args.length) workerArgs.addAll(List.of(args[i], args[i + 1]));
+                switch (args[i]) {
+                    case "--sort" -> sortMode = Sorter.Mode.valueOf(args[++i].toUpperCase());
+                    case "--state" -> statePath = args[++i];
+                    case "--cache" -> cacheDirectory = Path.of(args[++i]);
+                    case "--metrics" -> metricsPath = Path.of(args[++i]);
+                    case "--memory-budget" -> memoryBudget = MemoryBudget.parseSize(args[++i]);
+                    case "--spill-dir" -> spillDirectory = Path.of(args[++i]);
+                    case "--approx-keywords" -> approxKeywords = MemoryBudget.parseSize(args[++i]);
+                    case "--near-duplicates" -> {
+                        nearDuplicates = Double.parseDouble(args[++i]);
+                        if (!(nearDuplicates > 0 && nearDuplicates <= 1)) {
+                            throw new IllegalArgumentException("--near-duplicates must be in (0, 1]");
                         }
                     }
-
-                    for (String word : seenWords) {
-                        localRes.localKeywords.merge(word, 1, Integer::sum);
+                    case "--daemon" -> daemon = true;
+                    case "--refresh" -> {
+                        refreshSeconds = Integer.parseInt(args[++i]);
+                        if (refreshSeconds < 0) throw new IllegalArgumentException("--refresh must not be negative");
+                    }
+                    case "--port" -> {
+                        port = Integer.parseInt(args[++i]);
+                        if (port < 0 || port > 65535) throw new IllegalArgumentException("invalid --port");
+                    }
+                    case "--workers" -> {
+                        numWorkers = Integer.parseInt(args[++i]);
+                        if (numWorkers < 1) throw new IllegalArgumentException("--workers must be at least 1");
+                    }
+                    case "--shard" -> {
+                        String[] parts = args[++i].split("/");
+                        shard = Integer.parseInt(parts[0]);
+                        numShards = Integer.parseInt(parts[1]);
+                        if (shard < 0 || shard >= numShards) throw new IllegalArgumentException("invalid --shard");
+                    }
+                    case "--io-threads" -> {
+                        ioThreads = Integer.parseInt(args[++i]);
+                        if (ioThreads < 1) throw new IllegalArgumentException("--io-threads must be at least 1");
+                    }
+                    case "--top-keywords" -> {
+                        keywordLimit = Integer.parseInt(args[++i]);
+                        if (keywordLimit < 1) throw new IllegalArgumentException("--top-keywords must be at least 1");
                     }
+                    default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
                 }
+            }
+            if (numWorkers > 0 && statePath != null) {
+                throw new IllegalArgumentException("--state cannot be used with --workers");
+            }
+            if (daemon && (numWorkers > 0 || shard >= 0)) {
+                throw new IllegalArgumentException("--daemon cannot be used with --workers");
+            }
+            // the sketches cannot be saved, shipped back by a worker or refreshed
+            if (approxKeywords > 0 && (statePath != null || numWorkers > 0 || shard >= 0 || daemon)) {
+                throw new IllegalArgumentException("--approx-keywords cannot be used with --state, --workers or --daemon");
+            }
+            // the signatures of the previous runs or of the workers' articles are not kept
+            if (nearDuplicates > 0 && (statePath != null || numWorkers > 0 || shard >= 0 || daemon)) {
+                throw new IllegalArgumentException("--near-duplicates cannot be used with --state, --workers or --daemon");
+            }
+            if (approxKeywords > 0 && keywordLimit == Integer.MAX_VALUE) keywordLimit = DEFAULT_APPROX_KEYWORDS;
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.err.println("Invalid arguments: " + e.getMessage());
+            System.exit(1);
+        }
+        if (ioThreads < 0) ioThreads = Math.max(4, 2 * NUM_THREADS);
+    }
 
-                String author = art.getAuthor();
-                if (author != null && !author.isBlank()) {
-                    localRes.localAuthors.merge(author, 1, Integer::sum);
-                }
+    /**
+     * Wait for all futures to complete.
+     * @param futures
+     */
+    private static void waitForFutures(List<Future<?>> futures) {
+        Metrics.Stage stage = Metrics.enter(null);
+        for (Future<?> f : futures) {
+            try { f.get(); }
+            catch (ExecutionException e) {
+                if (e.getCause() instanceof UncheckedIOException) throw (UncheckedIOException) e.getCause();
+                System.err.println("Error: " + e.getMessage());
+            }
+            catch (InterruptedException e) { System.err.println("Error: " + e.getMessage()); }
+        }
+        Metrics.enter(stage);
+    }
+
+    /**
+     * Calculate top author, category, language, and keyword.
+     * The categories and languages are few, the authors are ranked by their own task.
+     * @param authorTop
+     */
+    private static void calculateTops(Future<Ranking.Top> authorTop) {
+        try {
+            Ranking.Top author = authorTop.get();
+            bestAuthor = author.name;
+            bestAuthorCount = author.count;
+        } catch (InterruptedException | ExecutionException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+
+        Ranking.Top category = Ranking.top(categoryToUuids, UuidPostings::size);
+        topCategory = category.name;
+        topCategoryCount = category.count;
+
+        Ranking.Top language = Ranking.top(languageToUuids, UuidPostings::size);
+        topLanguage = language.name;
+        topLanguageCount = language.count;
+
+        if (keywordRanking.size() > 0) {
+            topKeyword = keywordRanking.word(0);
+            topKeywordCount = keywordRanking.count(0);
+            if (!keywordRanking.topExact) {
+                System.err.println("Keyword Warning: top_keyword_en is not provably exact, " + topKeyword
+                        + " appears in " + topKeywordCount + " to " + (topKeywordCount + keywordRanking.error(0))
+                        + " articles");
             }
         }
-        return localRes;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,219 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sorted uuid list of a category or language, kept as two longs per uuid.
+ * Canonical uuids order like their two longs compared unsigned (see ArticleStore.isCanonicalUuid),
+ * so they are sorted and merged without building or comparing a String. The few uuids that are not
+ * canonical are kept apart as sorted Strings, and a Cursor reads both back in String order.
+ *
+ * The rows every worker found for a key are sorted on their own (of), then the sorted lists of
+ * all the workers are combined with a k-way merge (merge).
+ */
+public class UuidPostings {
+    // below this many uuids a range is insertion sorted
+    private static final int INSERTION_SORT = 32;
+    private static final String[] NO_RAW = new String[0];
+
+    private final long[] his;
+    private final long[] los;
+    private final int size;
+    // sorted uuids that are not canonical
+    private final String[] raw;
+
+    private UuidPostings(long[] his, long[] los, int size, String[] raw) {
+        this.his = his;
+        this.los = los;
+        this.size = size;
+        this.raw = raw;
+    }
+
+    /**
+     * Sorts the uuids of the rows that are not duplicates.
+     * @param store
+     * @param rows
+     * @param duplicate
+     * @return
+     */
+    public static UuidPostings of(ArticleStore store, IntList rows, boolean[] duplicate) {
+        long[] his = new long[rows.size()];
+        long[] los = new long[rows.size()];
+        int n = 0;
+        String[] raw = NO_RAW;
+        int rawCount = 0;
+        for (int i = 0; i < rows.size(); i++) {
+            int row = rows.get(i);
+            if (duplicate[row]) continue;
+            if (store.hasBinaryUuid(row)) {
+                his[n] = store.uuidHi(row);
+                los[n] = store.uuidLo(row);
+                n++;
+            } else {
+                if (rawCount == raw.length) raw = Arrays.copyOf(raw, Math.max(4, 2 * rawCount));
+                raw[rawCount++] = store.uuid(row);
+            }
+        }
+        sort(his, los, Arrays.copyOf(his, n), Arrays.copyOf(los, n), 0, n);
+        raw = Arrays.copyOf(raw, rawCount);
+        Arrays.sort(raw);
+        return new UuidPostings(his, los, n, raw);
+    }
+
+    /**
+     * Merges sorted lists into one.
+     * @param lists
+     * @return
+     */
+    public static UuidPostings merge(List<UuidPostings> lists) {
+        if (lists.size() == 1) return lists.get(0);
+        int total = 0;
+        int rawTotal = 0;
+        for (UuidPostings list : lists) {
+            total += list.size;
+            rawTotal += list.raw.length;
+        }
+
+        long[] his = new long[total];
+        long[] los = new long[total];
+        int[] heads = new int[lists.size()];
+        for (int k = 0; k < total; k++) {
+            int best = -1;
+            for (int l = 0; l < lists.size(); l++) {
+                if (heads[l] == lists.get(l).size) continue;
+                if (best < 0 || lists.get(l).before(heads[l], lists.get(best), heads[best])) best = l;
+            }
+            UuidPostings from = lists.get(best);
+            his[k] = from.his[heads[best]];
+            los[k] = from.los[heads[best]];
+            heads[best]++;
+        }
+
+        // the uuids that are not canonical are rare, they are simply sorted again
+        String[] raw = NO_RAW;
+        if (rawTotal > 0) {
+            raw = new String[rawTotal];
+            int at = 0;
+            for (UuidPostings list : lists) {
+                System.arraycopy(list.raw, 0, raw, at, list.raw.length);
+                at += list.raw.length;
+            }
+            Arrays.sort(raw);
+        }
+        return new UuidPostings(his, los, total, raw);
+    }
+
+    /**
+     * @return the number of uuids
+     */
+    public int size() {
+        return size + raw.length;
+    }
+
+    /**
+     * @return a cursor before the first uuid
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Reads the uuids in String order: either binary, hi and lo holding the uuid, or raw.
+     */
+    public class Cursor {
+        private int next;
+        private int nextRaw;
+        private String formatted;
+        long hi;
+        long lo;
+        // the uuid when it is not canonical, null otherwise
+        String raw;
+
+        /**
+         * Moves to the next uuid.
+         * @return false past the last one
+         */
+        public boolean next() {
+            boolean binary = next < size;
+            if (nextRaw < UuidPostings.this.raw.length && (!binary || compareNextRaw() < 0)) {
+                raw = UuidPostings.this.raw[nextRaw++];
+                return true;
+            }
+            if (!binary) return false;
+            hi = his[next];
+            lo = los[next];
+            next++;
+            raw = null;
+            formatted = null;
+            return true;
+        }
+
+        /**
+         * Appends the current uuid.
+         * @param sb
+         */
+        public void appendTo(StringBuilder sb) {
+            if (raw != null) sb.append(raw);
+            else ArticleStore.appendUuid(sb, hi, lo);
+        }
+
+        private int compareNextRaw() {
+            if (formatted == null) {
+                StringBuilder sb = new StringBuilder(36);
+                ArticleStore.appendUuid(sb, his[next], los[next]);
+                formatted = sb.toString();
+            }
+            return UuidPostings.this.raw[nextRaw].compareTo(formatted);
+        }
+    }
+
+    private boolean before(int i, UuidPostings other, int j) {
+        int cmp = Long.compareUnsigned(his[i], other.his[j]);
+        return cmp != 0 ? cmp < 0 : Long.compareUnsigned(los[i], other.los[j]) < 0;
+    }
+
+    /**
+     * Merge sorts the uuids in [from, to) of srcHis/srcLos into his/los, using them as scratch.
+     * @param his
+     * @param los
+     * @param srcHis
+     * @param srcLos
+     * @param from
+     * @param to
+     */
+    private static void sort(long[] his, long[] los, long[] srcHis, long[] srcLos, int from, int to) {
+        if (to - from <= INSERTION_SORT) {
+            for (int i = from; i < to; i++) {
+                long hi = srcHis[i];
+                long lo = srcLos[i];
+                int j = i;
+                for (; j > from && less(hi, lo, his[j - 1], los[j - 1]); j--) {
+                    his[j] = his[j - 1];
+                    los[j] = los[j - 1];
+                }
+                his[j] = hi;
+                los[j] = lo;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        // sort both halves into the source, then merge them into the destination
+        sort(srcHis, srcLos, his, los, from, mid);
+        sort(srcHis, srcLos, his, los, mid, to);
+        int i = from;
+        int j = mid;
+        for (int k = from; k < to; k++) {
+            if (j == to || i < mid && !less(srcHis[j], srcLos[j], srcHis[i], srcLos[i])) {
+                his[k] = srcHis[i];
+                los[k] = srcLos[i++];
+            } else {
+                his[k] = srcHis[j];
+                los[k] = srcLos[j++];
+            }
+        }
+    }
+
+    private static boolean less(long hiA, long loA, long hiB, long loB) {
+        int cmp = Long.compareUnsigned(hiA, hiB);
+        return cmp != 0 ? cmp < 0 : Long.compareUnsigned(loA, loB) < 0;
+    }
+}
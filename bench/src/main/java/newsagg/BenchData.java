@@ -0,0 +1,71 @@
+package newsagg;
+
+import com.fasterxml.jackson.core.JsonFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/**
+ * Corpus shared by the benchmarks: CorpusGenerator output in a temporary directory,
+ * with its default distributions.
+ */
+final class BenchData {
+    static final int ARTICLES_PER_FILE = 500;
+    static final Set<String> STOP_WORDS = Set.copyOf(CorpusGenerator.stopWords(new CorpusGenerator.Config().stopWords));
+
+    final Path directory;
+    final String[] paths;
+
+    private BenchData(Path directory, String[] paths) {
+        this.directory = directory;
+        this.paths = paths;
+    }
+
+    /**
+     * Generates numArticles articles in a new temporary directory.
+     * @param numArticles
+     * @param seed
+     * @return
+     * @throws IOException
+     */
+    static BenchData create(int numArticles, long seed) throws IOException {
+        CorpusGenerator.Config config = new CorpusGenerator.Config();
+        config.articles = numArticles;
+        config.articlesPerFile = ARTICLES_PER_FILE;
+        config.seed = seed;
+
+        Path directory = Files.createTempDirectory("newsagg-bench");
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            return new BenchData(directory, new CorpusGenerator(config).generate(directory, executor));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Parses every file on the calling thread.
+     * @return
+     */
+    ArticleStore load() {
+        Queue<String> queue = new ConcurrentLinkedQueue<>(List.of(paths));
+        return DataLoader.readFilesDynamic(new JsonFactory(), ArticleParser.forKeywords(), queue, new ArticleStore());
+    }
+
+    void delete() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package newsagg;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading stage: DataLoader.readFilesDynamic on every thread, parts concatenated at the end.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+    @Param({"1", "4"})
+    int threads;
+
+    @Param({"10000", "100000"})
+    int articles;
+
+    private BenchData data;
+    private ExecutorService executor;
+    private final JsonFactory factory = new JsonFactory();
+    private final ArticleParser parser = ArticleParser.forKeywords();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        data = BenchData.create(articles, 42);
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        executor.shutdown();
+        data.delete();
+    }
+
+    @Benchmark
+    public ArticleStore readFilesDynamic() throws InterruptedException, ExecutionException {
+        Queue<String> queue = new ConcurrentLinkedQueue<>(List.of(data.paths));
+        ArticleStore store = new ArticleStore();
+        List<Future<ArticleStore>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(() -> DataLoader.readFilesDynamic(factory, parser, queue, store)));
+        }
+        List<ArticleStore> parts = new ArrayList<>();
+        for (Future<ArticleStore> f : futures) parts.add(f.get());
+        return ArticleStore.concat(parts);
+    }
+}
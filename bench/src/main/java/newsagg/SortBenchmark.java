@@ -0,0 +1,83 @@
+package newsagg;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sorting stage: the rows of the unique articles by published date (newest first), then uuid.
+ * Arrays.parallelSort runs the same comparison on boxed rows, in the common ForkJoinPool, so it
+ * ignores the threads parameter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SortBenchmark {
+    @Param({"1", "4"})
+    int threads;
+
+    @Param({"10000", "100000"})
+    int articles;
+
+    private ArticleStore store;
+    private int[] unsorted;
+    private int[] rows;
+    private Integer[] boxed;
+    private ForkJoinPool executor;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        BenchData data = BenchData.create(articles, 42);
+        store = data.load();
+        data.delete();
+        executor = new ForkJoinPool(threads);
+        unsorted = Deduplicator.uniqueRows(store, executor);
+    }
+
+    @Setup(Level.Invocation)
+    public void copyRows() {
+        rows = unsorted.clone();
+        boxed = Arrays.stream(unsorted).boxed().toArray(Integer[]::new);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public int[] parallelMergeSort() {
+        Sorter.parallelMergeSort(store, rows, executor, 0, rows.length - 1, threads);
+        return rows;
+    }
+
+    @Benchmark
+    public int[] parallelRadixSort() {
+        Sorter.parallelRadixSort(store, rows, executor, threads);
+        return rows;
+    }
+
+    @Benchmark
+    public Integer[] arraysParallelSort() {
+        Arrays.parallelSort(boxed, store::compareRows);
+        return boxed;
+    }
+}
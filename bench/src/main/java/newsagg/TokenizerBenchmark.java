@@ -0,0 +1,158 @@
+package newsagg;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Processing stage: the per-article aggregation (categories, languages, authors, keywords) on
+ * every thread, and the keyword extraction alone with KeywordTokenizer against the previous
+ * toLowerCase/regex/split implementation. Only the aggregation uses the Workers state, so the
+ * single-thread ones run once per corpus size instead of once per thread count.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenizerBenchmark {
+    private static final Pattern TEXT_PATTERN = Pattern.compile("[^a-z\\s]");
+
+    /**
+     * The articles, and the english texts alone.
+     */
+    @State(Scope.Benchmark)
+    public static class Corpus {
+        @Param({"10000", "100000"})
+        int articles;
+
+        ArticleStore store;
+        String[] texts;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            BenchData data = BenchData.create(articles, 42);
+            store = data.load();
+            data.delete();
+
+            List<String> english = new ArrayList<>();
+            for (int row = 0; row < store.size(); row++) {
+                if (store.text(row) != null) english.add(store.text(row));
+            }
+            texts = english.toArray(new String[0]);
+
+            Map<String, Integer> expected = regex(texts);
+            KeywordTable table = scanner(texts);
+            Map<String, Integer> actual = new HashMap<>();
+            for (int id = 0; id < table.size(); id++) {
+                if (table.count(id) != 0) actual.put(table.word(id), table.count(id));
+            }
+            if (!expected.equals(actual)) {
+                throw new IllegalStateException("tokenizer results differ from the regex implementation");
+            }
+        }
+    }
+
+    /**
+     * The threads of the aggregation.
+     */
+    @State(Scope.Benchmark)
+    public static class Workers {
+        @Param({"1", "4"})
+        int threads;
+
+        ExecutorService executor;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            executor = Executors.newFixedThreadPool(threads);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            executor.shutdown();
+        }
+    }
+
+    @Benchmark
+    public List<ProcessingResult> aggregate(Corpus corpus, Workers workers)
+            throws InterruptedException, ExecutionException {
+        ArticleStore store = corpus.store;
+        int threads = workers.threads;
+        int total = store.size();
+        int chunkSize = (int) Math.ceil((double) total / threads);
+        List<Future<ProcessingResult>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final int start = Math.min(i * chunkSize, total);
+            final int end = Math.min(start + chunkSize, total);
+            futures.add(workers.executor.submit(() -> {
+                Pipeline.Aggregator aggregator = new Pipeline.Aggregator(store, BenchData.STOP_WORDS);
+                for (int row = start; row < end; row++) aggregator.accumulate(store, row, row, 1);
+                aggregator.finish(threads);
+                return aggregator.result;
+            }));
+        }
+        List<ProcessingResult> results = new ArrayList<>();
+        for (Future<ProcessingResult> f : futures) results.add(f.get());
+        return results;
+    }
+
+    @Benchmark
+    public KeywordTable scannerSingleThread(Corpus corpus) {
+        return scanner(corpus.texts);
+    }
+
+    @Benchmark
+    public Map<String, Integer> regexSingleThread(Corpus corpus) {
+        return regex(corpus.texts);
+    }
+
+    private static Map<String, Integer> regex(String[] texts) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String text : texts) {
+            String[] words = TEXT_PATTERN.matcher(text.toLowerCase()).replaceAll("").split("\\s+");
+            Set<String> seenWords = new HashSet<>();
+            for (String word : words) {
+                if (!word.isBlank() && !BenchData.STOP_WORDS.contains(word)) seenWords.add(word);
+            }
+            for (String word : seenWords) counts.merge(word, 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    private static KeywordTable scanner(String[] texts) {
+        KeywordTokenizer tokenizer = new KeywordTokenizer(BenchData.STOP_WORDS);
+        KeywordTable counts = tokenizer.table();
+        IntList words = new IntList(256);
+        for (String text : texts) {
+            words.clear();
+            tokenizer.tokenize(text, words);
+            for (int w = 0; w < words.size(); w++) counts.add(words.get(w), 1);
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,109 @@
+package newsagg;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Output stage: OutputWriter.writeResults (category, language and keyword files) and
+ * OutputWriter.writeAllArticles. Files are written to the working directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmark {
+    @Param({"1", "4"})
+    int threads;
+
+    @Param({"10000", "100000"})
+    int articles;
+
+    private ArticleStore store;
+    private int[] rows;
+    private Map<String, UuidPostings> categoryToUuids;
+    private Map<String, UuidPostings> languageToUuids;
+    private Ranking.Ranked keywords;
+    private ForkJoinPool executor;
+    private ExecutorService ioExecutor;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        BenchData data = BenchData.create(articles, 42);
+        store = data.load();
+        data.delete();
+        executor = new ForkJoinPool(threads);
+        ioExecutor = IoExecutor.create(Math.max(4, 2 * threads));
+
+        rows = Deduplicator.uniqueRows(store, executor);
+        Sorter.sort(Sorter.Mode.RADIX, store, rows, executor, threads);
+
+        Map<String, IntList> categoryRows = new HashMap<>();
+        Map<String, IntList> languageRows = new HashMap<>();
+        KeywordTokenizer tokenizer = new KeywordTokenizer(BenchData.STOP_WORDS);
+        IntList words = new IntList(256);
+        for (int row : rows) {
+            for (int c = store.categoryStart(row); c < store.categoryEnd(row); c++) {
+                String cat = store.categoryDictionary().get(store.categoryAt(c));
+                categoryRows.computeIfAbsent(cat, k -> new IntList()).add(row);
+            }
+            if (store.language(row) != ArticleStore.NONE) {
+                String lang = store.languageDictionary().get(store.language(row));
+                languageRows.computeIfAbsent(lang, k -> new IntList()).add(row);
+            }
+            if (store.text(row) != null) {
+                words.clear();
+                tokenizer.tokenize(store.text(row), words);
+                for (int w = 0; w < words.size(); w++) tokenizer.table().add(words.get(w), 1);
+            }
+        }
+        keywords = Ranking.rank(tokenizer.table(), Integer.MAX_VALUE);
+        // writeResults expects the posting lists sorted, as Tema1 builds them
+        boolean[] duplicate = new boolean[store.size()];
+        categoryToUuids = new HashMap<>();
+        languageToUuids = new HashMap<>();
+        categoryRows.forEach((k, list) -> categoryToUuids.put(k, UuidPostings.of(store, list, duplicate)));
+        languageRows.forEach((k, list) -> languageToUuids.put(k, UuidPostings.of(store, list, duplicate)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+        ioExecutor.shutdown();
+    }
+
+    @Benchmark
+    public void writeResults() {
+        OutputWriter.writeResults(ioExecutor, categoryToUuids, languageToUuids, keywords);
+    }
+
+    @Benchmark
+    public void writeAllArticles() {
+        for (var f : OutputWriter.writeAllArticles(store, rows, executor, ioExecutor, threads)) {
+            try {
+                f.get();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}